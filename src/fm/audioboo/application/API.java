@@ -43,6 +43,11 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.HttpVersion;
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpContext;
 
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpGet;
@@ -74,14 +79,15 @@ import java.util.Locale;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import java.math.BigInteger;
-import java.security.MessageDigest;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 
 import fm.audioboo.data.Tag;
@@ -132,6 +138,15 @@ public class API
   // Maximum number of retries to use when updating the device status.
   public static final int STATUS_UPDATE_MAX_RETRIES = 3;
 
+  // Request lanes. Requests are dispatched by separate pools of threads per
+  // lane, so requests in one lane cannot block requests in another.
+  // - LANE_INTERACTIVE is for anything the user is waiting for.
+  // - LANE_UPLOAD is for attachment chunks and Boo metadata uploads.
+  // - LANE_BACKGROUND is for polling and other requests nobody waits for.
+  public static final int LANE_INTERACTIVE          = 0;
+  public static final int LANE_UPLOAD               = 1;
+  public static final int LANE_BACKGROUND           = 2;
+
 
   /***************************************************************************
    * The APIException class is sent as the message object in ERR_API_ERROR
@@ -244,6 +259,9 @@ public class API
   private static final String KEY_API_VERSION             = "version";
   private static final String KEY_API_FORMAT              = "fmt";
 
+  // Upper bound on the age of listed Boos
+  private static final String KEY_MAX_TIME                = "max_time";
+
   // Signature-related keys
   private static final String KEY_SOURCE_KEY              = "source[key]";
   private static final String KEY_SOURCE_SIGNATURE        = "source[signature]";
@@ -285,26 +303,81 @@ public class API
     //     RT_GET anyway.
   }
 
+  // Parameters that are stamped with the time of the call. They're left out
+  // of HTTP cache keys, or every call would get a new key and the cached
+  // response would never be revalidated; the server still sees them.
+  private static final HashSet<String> VOLATILE_PARAMS;
+  static {
+    VOLATILE_PARAMS = new HashSet<String>();
+    VOLATILE_PARAMS.add(KEY_MAX_TIME);
+  }
+
   // HTTP Client parameters
   private static final int          HTTP_CONNECT_TIMEOUT    = 30 * 1000;
   private static final int          HTTP_RESPONSE_TIMEOUT   = 30 * 1000;
   private static final HttpVersion  HTTP_VERSION            = HttpVersion.HTTP_1_1;
 
+  // Connection pool parameters. The per route limit must accommodate all
+  // Requesters plus the ImageCache's fetcher. Keep-alive applies if the
+  // server doesn't specify a duration; idle connections are closed after the
+  // idle timeout either way.
+  private static final int          HTTP_MAX_CONNECTIONS    = 12;
+  private static final int          HTTP_MAX_PER_ROUTE      = 6;
+  private static final long         HTTP_KEEP_ALIVE         = 30 * 1000;
+  private static final long         HTTP_IDLE_TIMEOUT       = 60 * 1000;
+
   // Requester startup delay. Avoids high load at startup that could impact UX.
   private static final int          REQUESTER_SLEEP_TIME    = 300 * 1000;
   private static final int          REQUESTER_FIRST_SLEEP   = 1000;
 
+  // Default number of Requester threads, and thread priorities per lane.
+  // XXX indices are LANE_xxx constants above
+  private static final int          LANE_CONCURRENCY[]      = { 3, 1, 1 };
+  private static final int          LANE_PRIORITIES[]       = {
+    Thread.NORM_PRIORITY,
+    Thread.NORM_PRIORITY - 1,
+    Thread.MIN_PRIORITY,
+  };
+
+  // Maximum number of requests that may be waiting in any one lane.
+  private static final int          LANE_CAPACITY           = 100;
+
+  // The status is refreshed in the background once this fraction of the
+  // server-provided window has passed, but not more often than the minimum
+  // delay. Failed refreshes are retried after the retry delay.
+  private static final double       STATUS_REFRESH_FACTOR   = 0.8;
+  private static final int          STATUS_REFRESH_MIN      = 5 * 1000;
+  private static final int          STATUS_REFRESH_RETRY    = 30 * 1000;
+
   // Chunk size to read responses in (in Bytes).
   private static final int          READ_CHUNK_SIZE         = 8192;
 
+  // Directory name and maximum size (in Bytes) of the HTTP cache.
+  private static final String       HTTP_CACHE_DIR          = "http_cache";
+  private static final long         HTTP_CACHE_MAX_SIZE     = 2 * 1024 * 1024;
+
   /***************************************************************************
    * Protected static data
    **/
+  protected static ConnectionPool               sConnectionPool;
   protected static DefaultHttpClient            sClient;
   protected static ThreadSafeClientConnManager  sConnectionManager;
 
 
 
+  /***************************************************************************
+   * Parses a response body straight off the network, on the Requester thread.
+   * The result is sent to the Request's callback in place of the response
+   * String. Implementations send their own error messages to the Request and
+   * return null if the body could not be parsed.
+   **/
+  interface StreamParser
+  {
+    public Object parse(InputStream is, Request req) throws IOException;
+  }
+
+
+
   /***************************************************************************
    * Context for each request
    **/
@@ -317,6 +390,14 @@ public class API
     private Handler.Callback        mCallback;
     private int                     mRequestType;
     private Object                  mBaton;
+    private StreamParser            mStreamParser;
+    private String                  mCacheKey;
+
+    // Coalescing data; see scheduleRequest(). Requests attached to this one
+    // receive the same response messages.
+    private int                     mLane = LANE_INTERACTIVE;
+    private String                  mFlightKey;
+    private LinkedList<Request>     mFollowers;
 
     // Response data
     private int                     httpStatus = 0;
@@ -360,128 +441,159 @@ public class API
 
 
   /***************************************************************************
-   * Helper class for fetching API responses in the background.
+   * Helper class for fetching API responses in the background. Each lane is
+   * served by its own pool of Requesters, so that e.g. a slow upload does not
+   * hold up list or image fetches queued behind it.
    **/
   private class Requester extends Thread
   {
     public volatile boolean mKeepRunning = true;
 
+    private int             mLane;
+
+
+    public Requester(int lane)
+    {
+      super();
+      mLane = lane;
+      setPriority(LANE_PRIORITIES[lane]);
+    }
+
+
 
     @Override
     public void run()
     {
-      boolean first = true;
+      // Avoid high load at startup.
+      try {
+        sleep(REQUESTER_FIRST_SLEEP);
+      } catch (java.lang.InterruptedException ex) {
+        // pass
+      }
+
+      LinkedBlockingQueue<Request> queue = mLanes.get(mLane);
       while (mKeepRunning) {
-        try {
-          if (first) {
+        // Resolve API host. Should return immediately after the first time
+        // it's run. Until it succeeds, requests stay queued in order.
+        if (!resolveAPIHost()) {
+          try {
             sleep(REQUESTER_FIRST_SLEEP);
-            first = false;
-          }
-          else {
-            sleep(REQUESTER_SLEEP_TIME);
+          } catch (java.lang.InterruptedException ex) {
+            // pass
           }
+          continue;
+        }
+
+        // Grab the next request off the queue; wake up periodically to check
+        // whether we're supposed to keep running.
+        Request req = null;
+        try {
+          req = queue.poll(REQUESTER_SLEEP_TIME, TimeUnit.MILLISECONDS);
         } catch (java.lang.InterruptedException ex) {
-          if (first) {
-            continue;
-          }
+          continue;
+        }
+        if (null == req) {
+          continue;
         }
 
-        do {
-          // Log.d(LTAG, "Current queue: " + mRequestQueue.size());
+        // Log.d(LTAG, "Got request to: " + req.mApi + " on lane " + mLane);
 
-          // Resolve API host. Should return immediately after the first time
-          // it's run.
-          if (!resolveAPIHost()) {
-            // Go back to sleep
-            break;
-          }
+        try {
+          processRequest(req);
+        } finally {
+          // Requests scheduled from now on must be sent anew.
+          land(req);
+        }
+      }
+    }
+  }
 
-          // Grab the next request off the queue.
-          Request req = mRequestQueue.poll();
-          if (null == req) {
-            // Go back to sleep
-            break;
-          }
 
-          // Log.d(LTAG, "Got request to: " + req.mApi);
-
-          // After resolving the API host, we need to obtain the appropriate
-          // key(s) for API calls. This should return immediately after the
-          // first time it's run.
-          initializeAPIKeys(req);
-
-          // It's possible for our request to fail because the status we've
-          // got is stale. We want to guard against that.
-          int requestTries = 0;
-          boolean sleepAgain = false;
-          do {
-            // To do that, we'll first update our idea of the status before
-            // sending off the request we were supposed to make. We'll try a
-            // few times to be on the safe side.
-            int statusTries = 0;
-            int status = -1;
-            do {
-              status = updateStatus(req);
-              ++statusTries;
-            } while (ERR_SUCCESS != status && statusTries <= 3);
-
-            if (ERR_SUCCESS != status) {
-              Log.e(LTAG, "Could not update status, going back to sleep.");
-              sendMessage(req, ERR_AUTHENTICATION);
-              sleepAgain = true;
-              break;
-            }
 
-            // If we've reached here, the updateStatus() calls were successful.
-            // However, they can return cached information, so the actual
-            // request can still fail. Let's try, though.
-            //
-            // First, however, we may already be done if the API call scheduled
-            // was in fact for the status.
-            if (req.mApi.equals(API_STATUS)) {
-              sendMessage(req, status);
-              break;
-            }
+  /***************************************************************************
+   * Helper class for keeping the status fresh in the background, so that
+   * requests don't need to wait for a status update when it expires.
+   **/
+  private class StatusRefresher extends Thread
+  {
+    public volatile boolean mKeepRunning = true;
+
+
+    public StatusRefresher()
+    {
+      super();
+      setPriority(Thread.MIN_PRIORITY);
+    }
 
-            // Now try the actual request.
-            HttpRequestBase request = constructRequest(req);
 
-            // Perform request.
-            byte[] data = fetchRawSynchronous(request, req);
 
-            // If the request does *not* result in an authentication error.
-            // we're good.
-            if (401 != req.httpStatus) {
-              // Log.d(LTAG, "authentication error: " + requestTries);
-              if (null != data) {
-                sendMessage(req, ERR_SUCCESS, new String(data));
+    @Override
+    public void run()
+    {
+      while (mKeepRunning) {
+        // Sleep until the next refresh is due. If no status has been fetched
+        // yet, there's nothing to refresh; we'll get interrupted when there is.
+        long refreshAt = mStatusRefreshAt;
+        long delay = REQUESTER_SLEEP_TIME;
+        if (0 < refreshAt) {
+          delay = refreshAt - System.currentTimeMillis();
+        }
+
+        if (0 < delay) {
+          try {
+            sleep(delay);
+          } catch (java.lang.InterruptedException ex) {
+            // pass
+          }
+          continue;
+        }
+
+        // Log.d(LTAG, "Refreshing status in the background.");
+        Request req = new Request(API_STATUS, null, null, new Handler.Callback() {
+            public boolean handleMessage(Message msg)
+            {
+              if (ERR_SUCCESS != msg.what) {
+                Log.w(LTAG, "Background status refresh failed: " + msg.what);
               }
-              break;
+              return true;
             }
+        });
 
-            // If on the other hand it did, we may try the loop again.
-            ++requestTries;
-          } while (requestTries <= 3);
+        int status = ERR_UNKNOWN;
+        synchronized (mSetupLock)
+        {
+          status = fetchStatusLocked(req);
+        }
 
-          // If we've found that we need to sleep again, let's do so now.
-          // Let's also do that if we got authentication errors too often.
-          if (sleepAgain || requestTries > 3) {
-            break;
-          }
-        } while (true);
+        // On failure, try again a little later. The current status remains
+        // valid until it expires.
+        if (ERR_SUCCESS != status) {
+          mStatusRefreshAt = System.currentTimeMillis() + STATUS_REFRESH_RETRY;
+        }
       }
     }
   }
 
 
+
   /***************************************************************************
    * Data members
    **/
 
-  // Requester. There's only one instance, so only one API call can be scheduled
-  // at a time.
-  private Requester     mRequester;
-  private ConcurrentLinkedQueue<Request> mRequestQueue = new ConcurrentLinkedQueue<Request>();
+  // Request queues and the Requester threads serving them, one of each per
+  // lane. XXX indices are LANE_xxx constants above
+  private ArrayList<LinkedBlockingQueue<Request>> mLanes;
+  private ArrayList<LinkedList<Requester>>        mRequesters;
+
+  // Identical GET requests in flight, keyed by flightKey()
+  private HashMap<String, Request>                mInFlight = new HashMap<String, Request>();
+
+  // Disk cache for GET responses, keyed by cacheKey()
+  private HttpCache                               mHttpCache;
+
+  // Response body bytes received, before and after decompression.
+  private long                                    mWireBytes;
+  private long                                    mDecodedBytes;
   private Handler       mHandler = new Handler(new Handler.Callback() {
       public boolean handleMessage(Message msg)
       {
@@ -491,8 +603,12 @@ public class API
       }
   });
 
+  // Requesters in all lanes share the API host, keys and status; this lock
+  // ensures that only one of them at a time tries to establish either.
+  private Object        mSetupLock = new Object();
+
   // API host to use in requests.
-  private String        mAPIHost;
+  private volatile String mAPIHost;
 
   // Key and secret for signing requests. Defaults to service (not source/device)
   // values.
@@ -504,9 +620,12 @@ public class API
   private String        mParamNameSignature = KEY_SERVICE_SIGNATURE;
   private String        mParamNameTimestamp = KEY_SERVICE_TIMESTAMP;
 
-  // API Status.
-  private Status        mStatus;
-  private long          mStatusTimeout;
+  // API Status, and the time at which it should be refreshed in the
+  // background.
+  private volatile Status mStatus;
+  private volatile long   mStatusTimeout;
+  private volatile long   mStatusRefreshAt;
+  private StatusRefresher mStatusRefresher;
 
   // Informational - it's not really used yet, but this is the last server
   // timestamp we got from an updateStatus request.
@@ -516,7 +635,7 @@ public class API
   /***************************************************************************
    * Implementation
    **/
-  public API()
+  public API(Context context)
   {
     if (null == sConnectionManager || null == sClient) {
       // Set up an HttpClient instance that can be used by multiple threads
@@ -529,13 +648,144 @@ public class API
       // registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(),
       //       443));
 
-      sConnectionManager = new ThreadSafeClientConnManager(params, registry);
-      sClient = new DefaultHttpClient(sConnectionManager, params);
+      sConnectionPool = new ConnectionPool(params, registry,
+          HTTP_MAX_CONNECTIONS, HTTP_MAX_PER_ROUTE,
+          HTTP_KEEP_ALIVE, HTTP_IDLE_TIMEOUT);
+      sConnectionManager = sConnectionPool.getConnectionManager();
+      sClient = sConnectionPool.getClient();
+
+      // Ask for compressed responses, and decompress them transparently.
+      sClient.addRequestInterceptor(new HttpRequestInterceptor() {
+        public void process(HttpRequest request, HttpContext context)
+        {
+          if (!request.containsHeader("Accept-Encoding")) {
+            request.addHeader("Accept-Encoding", DecompressingEntity.ACCEPT_ENCODING);
+          }
+        }
+      });
+      sClient.addResponseInterceptor(new HttpResponseInterceptor() {
+        public void process(HttpResponse response, HttpContext context)
+        {
+          HttpEntity entity = response.getEntity();
+          if (null == entity || null == entity.getContentEncoding()) {
+            return;
+          }
+
+          for (HeaderElement element : entity.getContentEncoding().getElements()) {
+            if (DecompressingEntity.canDecode(element.getName())) {
+              response.setEntity(new DecompressingEntity(entity, element.getName()));
+              return;
+            }
+          }
+        }
+      });
+    }
+
+    mHttpCache = new HttpCache(context.getDir(HTTP_CACHE_DIR, Context.MODE_PRIVATE),
+        HTTP_CACHE_MAX_SIZE);
+
+    // Create lanes, and start requesters for each.
+    mLanes = new ArrayList<LinkedBlockingQueue<Request>>();
+    mRequesters = new ArrayList<LinkedList<Requester>>();
+    for (int lane = 0 ; lane < LANE_CONCURRENCY.length ; ++lane) {
+      mLanes.add(new LinkedBlockingQueue<Request>(LANE_CAPACITY));
+      mRequesters.add(new LinkedList<Requester>());
+      setLaneConcurrency(lane, LANE_CONCURRENCY[lane]);
+    }
+
+    // Start status refresher.
+    mStatusRefresher = new StatusRefresher();
+    mStatusRefresher.start();
+  }
+
+
+
+  /**
+   * Stops all background threads, and closes pooled connections. Requests
+   * still queued are dropped. The API object can't be used afterwards.
+   **/
+  public void release()
+  {
+    synchronized (mRequesters)
+    {
+      for (LinkedList<Requester> requesters : mRequesters) {
+        for (Requester r : requesters) {
+          r.mKeepRunning = false;
+          r.interrupt();
+        }
+        requesters.clear();
+      }
+    }
+
+    mStatusRefresher.mKeepRunning = false;
+    mStatusRefresher.interrupt();
+
+    synchronized (API.class)
+    {
+      if (null != sConnectionPool) {
+        sConnectionPool.shutdown();
+      }
+      sConnectionPool = null;
+      sConnectionManager = null;
+      sClient = null;
+    }
+  }
+
+
+
+  /**
+   * Returns the pool managing the connections used for API requests, e.g.
+   * to tune it or to inspect its statistics.
+   **/
+  public ConnectionPool getConnectionPool()
+  {
+    return sConnectionPool;
+  }
+
+
+
+  /**
+   * Sets the number of requests that may be in flight concurrently in the
+   * given lane. Surplus Requesters finish their current request before they
+   * exit.
+   **/
+  public void setLaneConcurrency(int lane, int concurrency)
+  {
+    if (lane < 0 || lane >= mRequesters.size()) {
+      throw new IllegalArgumentException("Invalid lane: " + lane);
     }
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Each lane needs at least one Requester.");
+    }
+
+    synchronized (mRequesters)
+    {
+      LinkedList<Requester> requesters = mRequesters.get(lane);
+      while (requesters.size() < concurrency) {
+        Requester r = new Requester(lane);
+        requesters.add(r);
+        r.start();
+      }
+      while (requesters.size() > concurrency) {
+        Requester r = requesters.removeLast();
+        r.mKeepRunning = false;
+        r.interrupt();
+      }
+    }
+  }
 
-    // Start requester.
-    mRequester = new Requester();
-    mRequester.start();
+
+
+  /**
+   * Returns the number of requests that may be in flight concurrently in the
+   * given lane.
+   **/
+  public int getLaneConcurrency(int lane)
+  {
+    synchronized (mRequesters)
+    {
+      return mRequesters.get(lane).size();
+    }
   }
 
 
@@ -545,11 +795,12 @@ public class API
    **/
   public Status getStatus()
   {
+    Status status = mStatus;
     long current = System.currentTimeMillis();
     if (current > mStatusTimeout) {
-      mStatus = null;
+      return null;
     }
-    return mStatus;
+    return status;
   }
 
 
@@ -561,6 +812,7 @@ public class API
   {
     mStatus = null;
     mStatusTimeout = 0;
+    mStatusRefreshAt = 0;
 
     mAPIKey             = SERVICE_KEY;
     mAPISecret          = SERVICE_SECRET;
@@ -687,6 +939,16 @@ public class API
    **/
   public void fetchBoos(final int type, final Handler result_handler, int page,
       int amount, Date timestamp)
+  {
+    fetchBoos(type, result_handler, page, amount, timestamp, LANE_INTERACTIVE);
+  }
+
+  /**
+   * As above, but in the given lane. Returns the Request, which can be passed
+   * to cancelRequest(), or null if none was made.
+   **/
+  public Request fetchBoos(final int type, final Handler result_handler, int page,
+      int amount, Date timestamp, int lane)
   {
     // Honor pagination
     HashMap<String, Object> signedParams = new HashMap<String, Object>();
@@ -694,7 +956,7 @@ public class API
     signedParams.put("page[number]", String.format("%d", page));
 
     // Other parameters
-    signedParams.put("max_time", String.format("%d", timestamp.getTime() / 1000));
+    signedParams.put(KEY_MAX_TIME, String.format("%d", timestamp.getTime() / 1000));
 
     signedParams.put("find[pg_rated]", "1");
     signedParams.put("image_size_hint[thumb]", String.format("%dx%d<",
@@ -709,34 +971,38 @@ public class API
       Location loc = Globals.get().mLocation;
       if (null == loc) {
         result_handler.obtainMessage(ERR_LOCATION_REQUIRED, null).sendToTarget();
-        return;
+        return null;
       }
 
       signedParams.put("find[latitude]", String.format("%f", loc.getLatitude()));
       signedParams.put("find[longitude]", String.format("%f", loc.getLongitude()));
     }
 
-    // This request has no parameters.
-    scheduleRequest(new Request(API_BOO_URLS[type], null, signedParams,
+    // This request has no parameters. The list is parsed on the Requester
+    // thread while it's being read, so on success the message object already
+    // is the BooList.
+    Request req = new Request(API_BOO_URLS[type], null, signedParams,
         new Handler.Callback() {
           public boolean handleMessage(Message msg)
           {
-            if (ERR_SUCCESS == msg.what) {
-              ResponseParser.Response<BooList> boos
-                  = ResponseParser.parseBooList((String) msg.obj, result_handler);
-              if (null != boos) {
-                // If boos were null, then the ResponseParser would already have sent an
-                // error message to the result_handler.
-                result_handler.obtainMessage(ERR_SUCCESS, boos.mContent).sendToTarget();
-              }
-            }
-            else {
-              result_handler.obtainMessage(msg.what, msg.obj).sendToTarget();
-            }
+            result_handler.obtainMessage(msg.what, msg.obj).sendToTarget();
             return true;
           }
         }
-    ));
+    );
+    req.mStreamParser = new StreamParser() {
+      public Object parse(InputStream is, Request r) throws IOException
+      {
+        ResponseParser.Response<BooList> boos = ResponseParser.parseBooList(is, r);
+        if (null == boos) {
+          // The ResponseParser has already sent an error message.
+          return null;
+        }
+        return boos.mContent;
+      }
+    };
+    scheduleRequest(req, lane);
+    return req;
   }
 
 
@@ -1115,7 +1381,8 @@ public class API
             }
             return true;
           }
-        }, RT_MULTIPART_POST)
+        }, RT_MULTIPART_POST),
+        LANE_UPLOAD
     );
   }
 
@@ -1124,21 +1391,25 @@ public class API
   /**
    * Create/add to attachments.
    **/
-  public void createAttachment(String filename, int offset, int size,
+  /**
+   * Attachment requests return the Request, which can be passed to
+   * cancelRequest() while it's still queued.
+   **/
+  public Request createAttachment(String filename, int offset, int size,
       final Handler result_handler)
   {
-    attachmentRequest(-1, filename, offset, size, result_handler);
+    return attachmentRequest(-1, filename, offset, size, result_handler);
   }
 
 
-  public void appendToAttachment(int attachmentId, String filename, int offset,
+  public Request appendToAttachment(int attachmentId, String filename, int offset,
       int size, final Handler result_handler)
   {
-    attachmentRequest(attachmentId, filename, offset, size, result_handler);
+    return attachmentRequest(attachmentId, filename, offset, size, result_handler);
   }
 
 
-  private void attachmentRequest(int attachmentId, String filename, int offset,
+  private Request attachmentRequest(int attachmentId, String filename, int offset,
       int size, final Handler result_handler)
   {
     File file = new File(filename);
@@ -1157,7 +1428,7 @@ public class API
     }
 
     // Log.d(LTAG, "Creating attachment request: " + api);
-    scheduleRequest(new Request(api, null, signedParams,
+    Request req = new Request(api, null, signedParams,
         new Handler.Callback() {
           public boolean handleMessage(Message msg)
           {
@@ -1173,40 +1444,9 @@ public class API
             }
             return true;
           }
-        }, request_type));
-  }
-
-
-
-  /**
-   * Concatenates parameters into a URL-encoded query string.
-   **/
-  private String constructQueryString(HashMap<String, Object> params)
-  {
-    String query_string = "";
-
-    if (null != params) {
-      for (Map.Entry<String, Object> param : params.entrySet()) {
-        Object obj = param.getValue();
-        if (obj instanceof String) {
-          query_string += String.format("%s=%s&",
-              Uri.encode(param.getKey()), Uri.encode((String) obj));
-        }
-        else if (obj instanceof LinkedList<?>) {
-          @SuppressWarnings("unchecked")
-          LinkedList<String> cast_obj = (LinkedList<String>) obj;
-          for (String s : cast_obj) {
-            query_string += String.format("%s=%s[]&",
-                Uri.encode(param.getKey()), Uri.encode(s));
-          }
-        }
-      }
-      if (0 < query_string.length()) {
-        query_string = query_string.substring(0, query_string.length() - 1);
-      }
-    }
-
-    return query_string;
+        }, request_type);
+    scheduleRequest(req, LANE_UPLOAD);
+    return req;
   }
 
 
@@ -1270,9 +1510,43 @@ public class API
 
 
   public byte[] fetchRawSynchronous(HttpRequestBase request, Request req)
+  {
+    return (byte[]) fetchSynchronous(request, req, false);
+  }
+
+
+
+  /**
+   * Like fetchRawSynchronous(), but hands the response stream to the
+   * Request's StreamParser and returns its result. The body of a 401 response
+   * is not parsed, so the caller can retry the request.
+   **/
+  private Object fetchParsedSynchronous(HttpRequestBase request, Request req)
+  {
+    return fetchSynchronous(request, req, true);
+  }
+
+
+
+  private Object fetchSynchronous(HttpRequestBase request, Request req, boolean parse)
   {
     HttpResponse response;
+    HttpCache.Entry cached = null;
     try {
+      // If we've got a cached response, ask the server whether it's still
+      // current rather than fetching it again.
+      if (null != req.mCacheKey) {
+        cached = mHttpCache.get(req.mCacheKey);
+        if (null != cached) {
+          if (null != cached.mETag) {
+            request.setHeader("If-None-Match", cached.mETag);
+          }
+          if (null != cached.mLastModified) {
+            request.setHeader("If-Modified-Since", cached.mLastModified);
+          }
+        }
+      }
+
       response = sClient.execute(request);
 
       int code = response.getStatusLine().getStatusCode();
@@ -1292,16 +1566,69 @@ public class API
 
       // Read response
       HttpEntity entity = response.getEntity();
-      if (null == entity) {
-        Log.e(LTAG, "Response is empty: " + request.getURI().toString());
-        sendMessage(req, ERR_EMPTY_RESPONSE);
-        return null;
+      InputStream is = null;
+      DecompressingEntity.CountingInputStream counted = null;
+      HttpCache.StoringInputStream storing = null;
+      if (304 == code && null != cached) {
+        // Not modified; serve the cached body instead.
+        // Log.d(LTAG, "Cache hit: " + req.mCacheKey);
+        if (null != entity) {
+          entity.consumeContent();
+        }
+        mHttpCache.touch(req.mCacheKey);
+        is = cached.mBody;
+        cached = null;
       }
+      else {
+        if (null == entity) {
+          Log.e(LTAG, "Response is empty: " + request.getURI().toString());
+          sendMessage(req, ERR_EMPTY_RESPONSE);
+          return null;
+        }
+        counted = new DecompressingEntity.CountingInputStream(entity.getContent());
+        is = counted;
+        if (null != req.mCacheKey && 200 == code) {
+          is = cacheResponse(req.mCacheKey, response, is);
+          if (is instanceof HttpCache.StoringInputStream) {
+            storing = (HttpCache.StoringInputStream) is;
+          }
+        }
+      }
+
+      // Only responses that were parsed successfully may be cached; errors
+      // reported in the body must not be served for later 304s.
+      boolean valid = false;
+      try {
+        if (parse) {
+          if (401 == code) {
+            return null;
+          }
+          Object result = req.mStreamParser.parse(is, req);
+          valid = (null != result);
+          return result;
+        }
 
-      // Log.d(LTAG, "reading stream response");
-      byte[] res = readStreamRaw(entity.getContent());
-      // Log.d(LTAG, "bytes: " + res.length);
-      return res;
+        // Log.d(LTAG, "reading stream response");
+        byte[] res = readStreamRaw(is);
+        // Log.d(LTAG, "bytes: " + res.length);
+        valid = (null != storing && ResponseParser.isValidResponse(new String(res)));
+        return res;
+      } finally {
+        if (null != storing) {
+          if (valid) {
+            storing.commit();
+          }
+          else {
+            storing.abort();
+          }
+        }
+
+        // Closing the stream releases the connection.
+        is.close();
+        if (null != counted) {
+          recordTransfer(request, entity, counted.getCount());
+        }
+      }
 
     } catch (IOException ex) {
       Log.e(LTAG, "An exception occurred when reading the API response: "
@@ -1311,6 +1638,15 @@ public class API
       Log.e(LTAG, "An exception occurred when reading the API response: "
           + "(" + request.getURI().toString() + "|" + ex + ") " + ex.getMessage());
       sendMessage(req, ERR_UNKNOWN);
+    } finally {
+      // Cached body that wasn't used.
+      if (null != cached) {
+        try {
+          cached.mBody.close();
+        } catch (IOException ex) {
+          // Ignore
+        }
+      }
     }
 
     return null;
@@ -1318,6 +1654,70 @@ public class API
 
 
 
+  /**
+   * Adds the bytes transferred for a response to the totals. If the response
+   * was compressed, fewer bytes were received than were decoded.
+   **/
+  private void recordTransfer(HttpRequestBase request, HttpEntity entity, long decoded)
+  {
+    long wire = decoded;
+    if (entity instanceof DecompressingEntity) {
+      wire = ((DecompressingEntity) entity).getWireBytes();
+    }
+
+    synchronized (this)
+    {
+      mWireBytes += wire;
+      mDecodedBytes += decoded;
+    }
+
+    // Log.d(LTAG, String.format("%s: %d bytes received, %d bytes decoded",
+    //       request.getURI().getPath(), wire, decoded));
+  }
+
+
+
+  /**
+   * Returns the total number of response body bytes received so far, before
+   * and after decompression respectively. Responses served from the HTTP cache
+   * are not included.
+   **/
+  public synchronized long getWireBytes()
+  {
+    return mWireBytes;
+  }
+
+
+
+  public synchronized long getDecodedBytes()
+  {
+    return mDecodedBytes;
+  }
+
+
+
+  /**
+   * Returns a stream that stores the response body in the HTTP cache as it's
+   * being read, if the response can be revalidated later. Otherwise drops any
+   * previously cached response, which is now outdated.
+   **/
+  private InputStream cacheResponse(String key, HttpResponse response, InputStream is)
+  {
+    Header etag = response.getFirstHeader("ETag");
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    if (null == etag && null == lastModified) {
+      mHttpCache.remove(key);
+      return is;
+    }
+
+    return mHttpCache.store(key,
+        (null == etag ? null : etag.getValue()),
+        (null == lastModified ? null : lastModified.getValue()),
+        is);
+  }
+
+
+
   /**
    * Construct an HTTP request based on the API and parameters to query.
    **/
@@ -1344,14 +1744,7 @@ public class API
     // Log.d(LTAG, "Request URI: " + request_uri);
 
     // Figure out the type of request to construct.
-    int request_type = RT_GET;
-    if (-1 == requestType) {
-      Integer request_type_obj = REQUEST_TYPES.get(api);
-      request_type = (null == request_type_obj ? RT_GET : (int) request_type_obj);
-    }
-    else {
-      request_type = requestType;
-    }
+    int request_type = effectiveRequestType(api, requestType);
 
     return constructRequestInternal(request_uri, request_type,
         params, signedParams, fileParams);
@@ -1359,6 +1752,22 @@ public class API
 
 
 
+  /**
+   * Returns the request type to use for the API, if none is specified
+   * explicitly.
+   **/
+  private static int effectiveRequestType(String api, int requestType)
+  {
+    if (-1 != requestType) {
+      return requestType;
+    }
+
+    Integer request_type_obj = REQUEST_TYPES.get(api);
+    return (null == request_type_obj ? RT_GET : (int) request_type_obj);
+  }
+
+
+
   private HttpRequestBase constructRequestInternal(String request_uri,
       int request_type,
       HashMap<String, Object> params,
@@ -1379,8 +1788,7 @@ public class API
     switch (request_type) {
       case RT_GET:
         {
-          request_uri = String.format("%s?%s", request_uri,
-              constructQueryString(params));
+          request_uri = new UriBuilder(request_uri).appendQuery(params).toString();
           request = new HttpGet(request_uri);
         }
         break;
@@ -1483,8 +1891,7 @@ public class API
 
       case RT_DELETE:
         {
-          request_uri = String.format("%s?%s", request_uri,
-              constructQueryString(params));
+          request_uri = new UriBuilder(request_uri).appendQuery(params).toString();
           request = new HttpDelete(request_uri);
         }
         break;
@@ -1507,8 +1914,7 @@ public class API
     String result = relative;
     Uri uri = Uri.parse(relative);
     if (null == uri.getAuthority()) {
-      result = String.format("%s://%s/%s",
-          API_REQUEST_URI_SCHEME, mAPIHost, relative);
+      result = new UriBuilder(API_REQUEST_URI_SCHEME, mAPIHost, relative).toString();
     }
 
     return result;
@@ -1567,7 +1973,7 @@ public class API
     createSignature(base, params, signedParams);
 
     // Create signed Uri
-    String uri_str = String.format("%s?%s", base, constructQueryString(params));
+    String uri_str = new UriBuilder(base).appendQuery(params).toString();
     return Uri.parse(uri_str);
   }
 
@@ -1585,6 +1991,21 @@ public class API
       return true;
     }
 
+    synchronized (mSetupLock)
+    {
+      return resolveAPIHostLocked();
+    }
+  }
+
+
+
+  private boolean resolveAPIHostLocked()
+  {
+    // Another Requester may have resolved the host while we waited.
+    if (null != mAPIHost) {
+      return true;
+    }
+
     // Shortcut.
     if (0 >= SRV_LOOKUP_ATTEMPTS_MAX) {
       mAPIHost = DEFAULT_API_HOST;
@@ -1664,66 +2085,71 @@ public class API
     // 3. Then all signed parameters need to be copied to the parameters
     //    with a prefix.
     for (Map.Entry<String, Object> param : signedParams.entrySet()) {
-      params.put(String.format("%s%s", SIGNED_PARAM_PREFIX, param.getKey()),
-            param.getValue());
+      params.put(SIGNED_PARAM_PREFIX + param.getKey(), param.getValue());
     }
 
-    // 4. Sort keys of signed parameters.
-    List<String> keys = new LinkedList<String>();
-    keys.addAll(signedParams.keySet());
-    Collections.sort(keys, String.CASE_INSENSITIVE_ORDER);
+    // 4. Sign them.
+    String signature = computeSignature(request_uri, signedParams, mAPISecret);
 
-    // 5. Create the signature.
-    try {
-      MessageDigest m = MessageDigest.getInstance("SHA-1");
-      m.update(String.format("%s:", request_uri).getBytes());
-
-      for (int i = 0 ; i < keys.size() ; ++i) {
-        String key = keys.get(i);
-        Object obj = signedParams.get(key);
-        if (null == obj) {
-          Log.e(LTAG, "Ignoring null value for key: " + key);
-          continue;
-        }
+    // Log.d(LTAG, "signature: " + signature);
+    params.put(mParamNameSignature, signature);
+  }
 
-        if (obj instanceof List) {
-          List cast = (List) obj;
-          for (int j = 0 ; j < cast.size() ; ++j) {
-            m.update(String.format("%s[]=%s", key, cast.get(j).toString()).getBytes());
 
-            if (j < (cast.size() - 1)) {
-              m.update("&".getBytes());
-            }
-          }
-        }
 
-        else if (obj instanceof FilePartBody) {
-          m.update(String.format("%s=", key).getBytes());
-          FilePartBody part = (FilePartBody) obj;
-          part.updateHash(m);
-        }
+  /**
+   * Returns the signature for the given signed params, i.e. the SHA-1 hash of
+   * the request URI, the params sorted by key and the secret.
+   **/
+  static String computeSignature(String request_uri,
+      HashMap<String, Object> signedParams, String secret)
+  {
+    // 1. Sort keys of signed parameters.
+    RequestSigner signer = RequestSigner.get().reset();
+    List<String> keys = signer.keys();
+    keys.addAll(signedParams.keySet());
+    Collections.sort(keys, String.CASE_INSENSITIVE_ORDER);
 
-        else {
-          m.update(String.format("%s=%s", key, obj.toString()).getBytes());
-        }
+    // 2. Create the signature.
+    signer.append(request_uri).append(':');
+
+    for (int i = 0 ; i < keys.size() ; ++i) {
+      String key = keys.get(i);
+      Object obj = signedParams.get(key);
+      if (null == obj) {
+        Log.e(LTAG, "Ignoring null value for key: " + key);
+        continue;
+      }
 
+      if (obj instanceof List) {
+        List cast = (List) obj;
+        for (int j = 0 ; j < cast.size() ; ++j) {
+          signer.append(key).append("[]=").append(cast.get(j).toString());
 
-        if (i < (keys.size() - 1)) {
-          m.update("&".getBytes());
+          if (j < (cast.size() - 1)) {
+            signer.append('&');
+          }
         }
       }
 
-      m.update(String.format(":%s", mAPISecret).getBytes());
-      String signature = new BigInteger(1, m.digest()).toString(16);
-      while (signature.length() < 40) {
-        signature = "0" + signature;
+      else if (obj instanceof FilePartBody) {
+        signer.append(key).append('=');
+        FilePartBody part = (FilePartBody) obj;
+        part.updateHash(signer.digest());
+      }
+
+      else {
+        signer.append(key).append('=').append(obj.toString());
       }
 
-      // Log.d(LTAG, "signature: " + signature);
-      params.put(mParamNameSignature, signature);
-    } catch (java.security.NoSuchAlgorithmException ex) {
-      Log.e(LTAG, "Error: could not sign request: " + ex.getMessage());
+
+      if (i < (keys.size() - 1)) {
+        signer.append('&');
+      }
     }
+
+    signer.append(':').append(secret);
+    return signer.finish();
   }
 
 
@@ -1737,6 +2163,33 @@ public class API
       return ERR_SUCCESS;
     }
 
+    synchronized (mSetupLock)
+    {
+      return updateStatusLocked(req);
+    }
+  }
+
+
+
+  private int updateStatusLocked(final Request req)
+  {
+    // Another Requester may have updated the status while we waited.
+    if (null != getStatus()) {
+      return ERR_SUCCESS;
+    }
+
+    return fetchStatusLocked(req);
+  }
+
+
+
+  /**
+   * Performs a status request, regardless of whether the current status is
+   * still valid. On success, schedules the next background refresh.
+   * XXX Must be called when the setup lock is held.
+   **/
+  private int fetchStatusLocked(final Request req)
+  {
     // Construct status request. We pass an signedParams map to force signing
     HashMap<String, Object> signedParams = new HashMap<String, Object>();
     HttpRequestBase request = constructRequest(API_STATUS, null, signedParams);
@@ -1753,16 +2206,20 @@ public class API
     ResponseParser.Response<Status> status
         = ResponseParser.parseStatusResponse(new String(data), req);
 
-    if (null != status) {
-      mStatus = status.mContent;
-      mStatusTimeout = System.currentTimeMillis() + (status.mWindow * 1000);
-      mServerTimestamp = status.mTimestamp;
-    }
-
-    if (null == mStatus) {
+    if (null == status) {
       return ERR_EMPTY_RESPONSE;
     }
 
+    long now = System.currentTimeMillis();
+    mStatus = status.mContent;
+    mStatusTimeout = now + (status.mWindow * 1000);
+    mServerTimestamp = status.mTimestamp;
+
+    // Refresh the status before it expires.
+    mStatusRefreshAt = now + Math.max(STATUS_REFRESH_MIN,
+        (long) (status.mWindow * 1000 * STATUS_REFRESH_FACTOR));
+    mStatusRefresher.interrupt();
+
     return ERR_SUCCESS;
   }
 
@@ -1774,6 +2231,16 @@ public class API
    * - If that fails, fetch it from the API.
    **/
   private void initializeAPIKeys(final Request req)
+  {
+    synchronized (mSetupLock)
+    {
+      initializeAPIKeysLocked(req);
+    }
+  }
+
+
+
+  private void initializeAPIKeysLocked(final Request req)
   {
     // We can check any of the mAPI* or mParamName* fields to determine
     // whether or not we need to do anything here. Let's stick to the first.
@@ -1851,6 +2318,97 @@ public class API
 
 
 
+  /**
+   * Performs a single request, including the status updates that may be
+   * required for it. Called from Requester threads.
+   **/
+  private void processRequest(Request req)
+  {
+    // After resolving the API host, we need to obtain the appropriate
+    // key(s) for API calls. This should return immediately after the
+    // first time it's run.
+    initializeAPIKeys(req);
+
+    // Status requests want the status fetched if it's not known or has
+    // expired. All other requests are sent right away, on the assumption that
+    // the StatusRefresher keeps the status fresh.
+    if (req.mApi.equals(API_STATUS)) {
+      sendMessage(req, updateStatusWithRetries(req, false));
+      return;
+    }
+
+    // GET responses may be served from the HTTP cache. The key must be
+    // determined before the request parameters get signed.
+    req.mCacheKey = cacheKey(req);
+
+    // It's still possible for our request to fail because the status we've
+    // got is stale. We want to guard against that.
+    int requestTries = 0;
+    do {
+      // Try the actual request.
+      HttpRequestBase request = constructRequest(req);
+
+      // Perform request.
+      Object result = null;
+      if (null == req.mStreamParser) {
+        byte[] data = fetchRawSynchronous(request, req);
+        if (null != data) {
+          result = new String(data);
+        }
+      }
+      else {
+        result = fetchParsedSynchronous(request, req);
+      }
+
+      // If the request does *not* result in an authentication error.
+      // we're good.
+      if (401 != req.httpStatus) {
+        if (null != result) {
+          sendMessage(req, ERR_SUCCESS, result);
+        }
+        return;
+      }
+
+      // If on the other hand it did, we update our idea of the status before
+      // trying the loop again. This is the only time a request has to wait
+      // for the status.
+      // Log.d(LTAG, "authentication error: " + requestTries);
+      if (ERR_SUCCESS != updateStatusWithRetries(req, true)) {
+        Log.e(LTAG, "Could not update status for request to: " + req.mApi);
+        sendMessage(req, ERR_AUTHENTICATION);
+        return;
+      }
+      ++requestTries;
+    } while (requestTries <= 3);
+  }
+
+
+
+  /**
+   * Updates the status, trying a few times to be on the safe side. If force
+   * is true, the status is fetched even if the current status is still valid.
+   **/
+  private int updateStatusWithRetries(final Request req, boolean force)
+  {
+    int statusTries = 0;
+    int status = -1;
+    do {
+      if (force) {
+        synchronized (mSetupLock)
+        {
+          status = fetchStatusLocked(req);
+        }
+      }
+      else {
+        status = updateStatus(req);
+      }
+      ++statusTries;
+    } while (ERR_SUCCESS != status && statusTries <= STATUS_UPDATE_MAX_RETRIES);
+    return status;
+  }
+
+
+
   /**
    * Handler handling (haha, ohh I'm cracking myself up.)
    **/
@@ -1860,8 +2418,7 @@ public class API
       Log.e(LTAG, "Request is null.");
       return;
     }
-    req.mBaton = null;
-    mHandler.obtainMessage(type, req).sendToTarget();
+    sendMessage(req, type, null);
   }
 
 
@@ -1872,14 +2429,241 @@ public class API
       Log.e(LTAG, "Request is null.");
       return;
     }
+    // The first message for a request is also its result for any requests
+    // that were attached to it.
+    LinkedList<Request> followers = detach(req);
+
     req.mBaton = obj;
     mHandler.obtainMessage(type, req).sendToTarget();
+
+    if (null != followers) {
+      for (Request follower : followers) {
+        follower.mBaton = obj;
+        mHandler.obtainMessage(type, follower).sendToTarget();
+      }
+    }
   }
 
 
   private void scheduleRequest(Request req)
   {
-    mRequestQueue.add(req);
-    mRequester.interrupt();
+    scheduleRequest(req, LANE_INTERACTIVE);
+  }
+
+
+
+  private void scheduleRequest(Request req, int lane)
+  {
+    req.mLane = lane;
+
+    // If an identical request is already in flight, attach this one to it
+    // rather than sending it again.
+    String key = flightKey(req);
+    if (null != key) {
+      synchronized (mInFlight)
+      {
+        Request leader = mInFlight.get(key);
+        if (null != leader) {
+          // Log.d(LTAG, "Coalescing request to: " + req.mApi);
+          leader.mFollowers.add(req);
+
+          // If the leader is still waiting in a lower priority lane, move it
+          // into ours.
+          if (lane < leader.mLane && mLanes.get(leader.mLane).remove(leader)) {
+            leader.mLane = lane;
+            if (!mLanes.get(lane).offer(leader)) {
+              Log.e(LTAG, "Too many requests queued in lane " + lane + ", dropping request to: " + leader.mApi);
+              sendMessage(leader, ERR_TRANSMISSION);
+            }
+          }
+          return;
+        }
+
+        req.mFlightKey = key;
+        req.mFollowers = new LinkedList<Request>();
+        mInFlight.put(key, req);
+      }
+    }
+
+    if (!mLanes.get(lane).offer(req)) {
+      Log.e(LTAG, "Too many requests queued in lane " + lane + ", dropping request to: " + req.mApi);
+      sendMessage(req, ERR_TRANSMISSION);
+    }
+  }
+
+
+
+  /**
+   * Cancels a request that has not been sent yet. Returns true if the request
+   * was cancelled; no messages are sent for it then. Requests that are being
+   * processed already, or that other requests are waiting for, can't be
+   * cancelled.
+   **/
+  public boolean cancelRequest(Request req)
+  {
+    if (null == req) {
+      return false;
+    }
+
+    synchronized (mInFlight)
+    {
+      if (null == req.mFlightKey) {
+        // The request may be attached to another; if so, just detach it.
+        String key = flightKey(req);
+        Request leader = (null == key) ? null : mInFlight.get(key);
+        if (null != leader && leader != req && leader.mFollowers.remove(req)) {
+          return true;
+        }
+      }
+      else if (!req.mFollowers.isEmpty()) {
+        return false;
+      }
+
+      if (!mLanes.get(req.mLane).remove(req)) {
+        return false;
+      }
+      land(req);
+      return true;
+    }
+  }
+
+
+
+  /**
+   * Returns a key identifying requests that can share a single response, or
+   * null if the request must be sent on its own. Only GET requests can be
+   * coalesced; they're identified by the API and their parameters before
+   * signing.
+   **/
+  private String flightKey(Request req)
+  {
+    String key = requestKey(req, false);
+    if (null == key) {
+      return null;
+    }
+
+    // Parsed and unparsed responses can't be shared.
+    if (null != req.mStreamParser) {
+      key += "#parsed";
+    }
+    return key;
+  }
+
+
+
+  /**
+   * Returns the key under which the response to the request is stored in the
+   * HTTP cache, or null if the request can't be cached. Must be called before
+   * the request is signed.
+   *
+   * Requests that only differ in VOLATILE_PARAMS share a key. The cached
+   * response is only ever used after the server confirmed it's current for
+   * the request actually sent, so that's safe.
+   **/
+  private String cacheKey(Request req)
+  {
+    String key = requestKey(req, true);
+    if (null == key) {
+      return null;
+    }
+
+    // Responses differ between accounts.
+    return String.format("%s#%s", makeAbsoluteUriString(key), mAPIKey);
+  }
+
+
+
+  /**
+   * Returns a string identifying the request by its API and unsigned
+   * parameters, or null if the request is not a simple GET. If stable is
+   * set, VOLATILE_PARAMS are left out.
+   **/
+  private String requestKey(Request req, boolean stable)
+  {
+    if (null != req.mFileParams || RT_GET != effectiveRequestType(req.mApi, req.mRequestType)) {
+      return null;
+    }
+
+    StringBuilder key = new StringBuilder(req.mApi);
+    if (!appendFlightParams(key, '?', req.mParams, stable)) {
+      return null;
+    }
+    if (null == req.mSignedParams) {
+      key.append("#unsigned");
+    }
+    else if (!appendFlightParams(key, '#', req.mSignedParams, stable)) {
+      return null;
+    }
+    return key.toString();
+  }
+
+
+
+  private boolean appendFlightParams(StringBuilder key, char separator,
+      HashMap<String, Object> params, boolean stable)
+  {
+    key.append(separator);
+    if (null == params) {
+      return true;
+    }
+
+    List<String> keys = new ArrayList<String>(params.keySet());
+    Collections.sort(keys);
+    for (String k : keys) {
+      if (stable && VOLATILE_PARAMS.contains(k)) {
+        continue;
+      }
+      Object obj = params.get(k);
+      if (obj instanceof FilePartBody) {
+        return false;
+      }
+      key.append(k).append('=').append(obj).append('&');
+    }
+    return true;
+  }
+
+
+
+  /**
+   * Detaches the request from the in-flight map once it's done. Requests that
+   * were attached to it, but weren't sent its result via sendMessage() - e.g.
+   * because processing ended early - fail with ERR_UNKNOWN, so that none waits
+   * forever.
+   **/
+  private void land(Request req)
+  {
+    LinkedList<Request> followers = detach(req);
+    if (null == followers) {
+      return;
+    }
+
+    for (Request follower : followers) {
+      follower.mBaton = null;
+      mHandler.obtainMessage(ERR_UNKNOWN, follower).sendToTarget();
+    }
+  }
+
+
+
+  /**
+   * Detaches the request from the in-flight map, and returns the requests
+   * that were attached to it, if any. Subsequent calls return null.
+   **/
+  private LinkedList<Request> detach(Request req)
+  {
+    if (null == req.mFlightKey) {
+      return null;
+    }
+
+    synchronized (mInFlight)
+    {
+      if (req == mInFlight.get(req.mFlightKey)) {
+        mInFlight.remove(req.mFlightKey);
+      }
+      LinkedList<Request> followers = req.mFollowers;
+      req.mFollowers = null;
+      req.mFlightKey = null;
+      return followers;
+    }
   }
 }
@@ -36,6 +36,18 @@ public class AudiobooApplication extends Application
 
 
 
+  @Override
+  public void onLowMemory()
+  {
+    Log.i(LTAG, "Low on memory.");
+    Globals globals = Globals.get();
+    if (null != globals && null != globals.mImageCache) {
+      globals.mImageCache.clearMemory();
+    }
+  }
+
+
+
   @Override
   public void onTerminate()
   {
@@ -0,0 +1,182 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * Keeps decoded Bitmaps in memory, keyed by cache key and dimensions. The
+ * total size of the Bitmaps is limited to a byte budget; least recently used
+ * Bitmaps are dropped once it's exceeded.
+ *
+ * Bitmaps are never recycled by the cache, as they may still be displayed
+ * after being evicted. An EvictionListener can be told about evicted
+ * Bitmaps instead.
+ **/
+class BitmapMemoryCache
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG              = "BitmapMemoryCache";
+
+  // Fraction of the maximum heap size used by default.
+  private static final int    HEAP_FRACTION     = 8;
+
+
+  /***************************************************************************
+   * Listener interface
+   **/
+  public static interface EvictionListener
+  {
+    /**
+     * Called with the cache locked, for Bitmaps dropped to stay within
+     * budget.
+     **/
+    public void onEvicted(Bitmap bitmap);
+  }
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private LinkedHashMap<String, Bitmap> mBitmaps = new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+
+  private long  mMaxSize;
+  private long  mSize = 0;
+
+  private EvictionListener  mEvictionListener;
+
+  // Statistics
+  private long  mHits = 0;
+  private long  mMisses = 0;
+  private long  mEvictions = 0;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Uses a fraction of the maximum heap size as the budget.
+   **/
+  public BitmapMemoryCache()
+  {
+    this(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+  }
+
+
+
+  public BitmapMemoryCache(long maxSize)
+  {
+    mMaxSize = maxSize;
+    Log.i(LTAG, "Using up to " + maxSize + " bytes.");
+  }
+
+
+
+  public synchronized void setEvictionListener(EvictionListener listener)
+  {
+    mEvictionListener = listener;
+  }
+
+
+
+  /**
+   * Returns the Bitmap stored for the key and dimensions, or null.
+   **/
+  public synchronized Bitmap get(String cacheKey, int dimensions)
+  {
+    Bitmap bitmap = mBitmaps.get(makeKey(cacheKey, dimensions));
+    if (null == bitmap) {
+      ++mMisses;
+    }
+    else {
+      ++mHits;
+    }
+    return bitmap;
+  }
+
+
+
+  public synchronized void put(String cacheKey, int dimensions, Bitmap bitmap)
+  {
+    String key = makeKey(cacheKey, dimensions);
+
+    Bitmap old = mBitmaps.remove(key);
+    if (null != old) {
+      mSize -= sizeOf(old);
+    }
+
+    long size = sizeOf(bitmap);
+    if (size > mMaxSize) {
+      // Would only evict everything else.
+      return;
+    }
+
+    mBitmaps.put(key, bitmap);
+    mSize += size;
+
+    Iterator<Bitmap> iter = mBitmaps.values().iterator();
+    while (mSize > mMaxSize && iter.hasNext()) {
+      Bitmap evicted = iter.next();
+      iter.remove();
+      mSize -= sizeOf(evicted);
+      ++mEvictions;
+      if (null != mEvictionListener) {
+        mEvictionListener.onEvicted(evicted);
+      }
+    }
+  }
+
+
+
+  public synchronized void clear()
+  {
+    mBitmaps.clear();
+    mSize = 0;
+  }
+
+
+
+  public synchronized long getSize()
+  {
+    return mSize;
+  }
+
+
+
+  public synchronized String toString()
+  {
+    return String.format("<%s:bitmaps=%d:size=%d/%d:hits=%d:misses=%d:evictions=%d>",
+        LTAG, mBitmaps.size(), mSize, mMaxSize, mHits, mMisses, mEvictions);
+  }
+
+
+
+  private static String makeKey(String cacheKey, int dimensions)
+  {
+    return cacheKey + "@" + dimensions;
+  }
+
+
+
+  private static long sizeOf(Bitmap bitmap)
+  {
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+}
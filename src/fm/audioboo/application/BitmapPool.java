@@ -0,0 +1,311 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import android.os.Build;
+
+import java.lang.reflect.Field;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+/**
+ * Reduces allocations when decoding images:
+ * - Each thread gets a decode buffer that is passed to BitmapFactory via
+ *   inTempStorage, instead of BitmapFactory allocating a new one per decode.
+ * - Bitmaps that are only needed temporarily, such as the full decode an
+ *   image is scaled down from, can be returned to the pool. So can
+ *   thumbnails that dropped out of the memory cache. They're kept in buckets
+ *   by size, and decoded into again via BitmapFactory.Options' inBitmap
+ *   field, or used as the target for scaling images to the same size.
+ *
+ * Before API level 19 (KitKat), decoding into a Bitmap only works if it has
+ * exactly the decoded size, and the image isn't subsampled; subsampled
+ * decodes don't use the pool there.
+ *
+ * inBitmap and inMutable only exist from API level 11 (Honeycomb) onwards,
+ * and are looked up at runtime. Below that, i.e. on most devices we support,
+ * the pool is a no-op: nothing is ever pooled or reused, released Bitmaps
+ * are simply recycled, and only the decode buffers are of any use.
+ *
+ * Bitmaps that may still be displayed must never be released to the pool.
+ * ImageCache offers thumbnails evicted from its memory cache all the same:
+ * that cache holds far more thumbnails than fit on screen, so by the time
+ * one is evicted, it's long out of view.
+ **/
+class BitmapPool
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG                = "BitmapPool";
+
+  // Size of decode buffers; BitmapFactory's default.
+  private static final int    TEMP_STORAGE_SIZE   = 16 * 1024;
+
+  // Bitmaps kept per size, and in total. Thumbnails mostly share a size, so
+  // their bucket is the one that fills up.
+  private static final int    MAX_PER_BUCKET      = 4;
+  private static final int    MAX_BITMAPS         = 8;
+
+  // First API level that can decode subsampled images into pooled Bitmaps;
+  // Build.VERSION_CODES.KITKAT
+  private static final int    SAMPLED_REUSE_SDK   = 19;
+
+  // Decode buffers, one per thread.
+  private static final ThreadLocal<byte[]> sTempStorage = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[TEMP_STORAGE_SIZE];
+    }
+  };
+
+  // BitmapFactory.Options fields for reuse, if the platform has them.
+  private static Field        sInBitmap;
+  private static Field        sInMutable;
+
+  static {
+    try {
+      sInBitmap = BitmapFactory.Options.class.getField("inBitmap");
+      sInMutable = BitmapFactory.Options.class.getField("inMutable");
+    } catch (NoSuchFieldException ex) {
+      sInBitmap = null;
+      sInMutable = null;
+    }
+  }
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private HashMap<String, LinkedList<Bitmap>> mBuckets = new HashMap<String, LinkedList<Bitmap>>();
+  private int                                 mCount = 0;
+
+  // Statistics
+  private long                                mReused = 0;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Returns true if Bitmaps can be decoded into existing ones.
+   **/
+  public static boolean isReuseSupported()
+  {
+    return null != sInBitmap;
+  }
+
+
+
+  /**
+   * Returns decoding options using the calling thread's decode buffer.
+   **/
+  public static BitmapFactory.Options createOptions()
+  {
+    BitmapFactory.Options opts = new BitmapFactory.Options();
+    opts.inTempStorage = sTempStorage.get();
+    return opts;
+  }
+
+
+
+  /**
+   * Prepares options for decoding a Bitmap that may be released to the pool
+   * later. opts must have been used to decode the image bounds, and have
+   * inSampleSize set. The Bitmap is decoded as mutable, and if a Bitmap of
+   * the resulting size is available and the platform can decode into it,
+   * it's set as the one to decode into.
+   *
+   * Returns true if a pooled Bitmap is to be reused. Decoding into it fails
+   * with an IllegalArgumentException if it doesn't fit after all; callers
+   * should then call clearReuse() and decode again.
+   **/
+  public boolean prepareReuse(BitmapFactory.Options opts)
+  {
+    if (!isReuseSupported()) {
+      return false;
+    }
+
+    // Decoding a subsampled image into a pooled Bitmap is bound to fail
+    // before KitKat; it's still decoded as mutable, to be pooled later.
+    boolean sampled = opts.inSampleSize > 1;
+    boolean canReuse = !sampled || Build.VERSION.SDK_INT >= SAMPLED_REUSE_SDK;
+
+    Bitmap bitmap = null;
+    int sample = Math.max(1, opts.inSampleSize);
+    String key = makeKey(opts.outWidth / sample, opts.outHeight / sample);
+    synchronized (this)
+    {
+      LinkedList<Bitmap> bucket = mBuckets.get(key);
+      if (canReuse && null != bucket && !bucket.isEmpty()) {
+        bitmap = bucket.removeFirst();
+        --mCount;
+      }
+    }
+
+    try {
+      sInMutable.setBoolean(opts, true);
+      sInBitmap.set(opts, bitmap);
+    } catch (IllegalAccessException ex) {
+      Log.e(LTAG, "Could not set up Bitmap reuse: " + ex.getMessage());
+      return false;
+    }
+
+    if (null == bitmap) {
+      return false;
+    }
+    synchronized (this)
+    {
+      ++mReused;
+    }
+    return true;
+  }
+
+
+
+  /**
+   * Makes sure opts does not decode into a pooled Bitmap.
+   **/
+  public static void clearReuse(BitmapFactory.Options opts)
+  {
+    if (!isReuseSupported()) {
+      return;
+    }
+    try {
+      sInBitmap.set(opts, null);
+    } catch (IllegalAccessException ex) {
+      // Can't happen; it's a public field.
+    }
+  }
+
+
+
+  /**
+   * Returns a pooled Bitmap of the given size and config for drawing into, or
+   * null if there is none. Its contents are undefined.
+   **/
+  public Bitmap obtain(int width, int height, Bitmap.Config config)
+  {
+    if (null == config) {
+      return null;
+    }
+
+    synchronized (this)
+    {
+      LinkedList<Bitmap> bucket = mBuckets.get(makeKey(width, height));
+      if (null == bucket) {
+        return null;
+      }
+      Iterator<Bitmap> iter = bucket.iterator();
+      while (iter.hasNext()) {
+        Bitmap bitmap = iter.next();
+        if (config == bitmap.getConfig()) {
+          iter.remove();
+          --mCount;
+          ++mReused;
+          return bitmap;
+        }
+      }
+    }
+    return null;
+  }
+
+
+
+  /**
+   * Releases a temporary Bitmap to the pool, or recycles it if it can't be
+   * reused.
+   **/
+  public void release(Bitmap bitmap)
+  {
+    if (null == bitmap || bitmap.isRecycled()) {
+      return;
+    }
+
+    if (!offer(bitmap)) {
+      bitmap.recycle();
+    }
+  }
+
+
+
+  /**
+   * Adds a Bitmap that is no longer used to the pool, if it can be reused
+   * and there's room for it. Returns false otherwise; unlike release(), the
+   * Bitmap is then left alone, for callers that can't be sure it isn't
+   * displayed any longer.
+   **/
+  public boolean offer(Bitmap bitmap)
+  {
+    if (!isReuseSupported() || null == bitmap || bitmap.isRecycled()
+        || !bitmap.isMutable())
+    {
+      return false;
+    }
+
+    String key = makeKey(bitmap.getWidth(), bitmap.getHeight());
+    synchronized (this)
+    {
+      LinkedList<Bitmap> bucket = mBuckets.get(key);
+      if (null == bucket) {
+        bucket = new LinkedList<Bitmap>();
+        mBuckets.put(key, bucket);
+      }
+      if (bucket.size() < MAX_PER_BUCKET && mCount < MAX_BITMAPS) {
+        bucket.addLast(bitmap);
+        ++mCount;
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+
+  /**
+   * Recycles all pooled Bitmaps.
+   **/
+  public synchronized void clear()
+  {
+    for (LinkedList<Bitmap> bucket : mBuckets.values()) {
+      for (Bitmap bitmap : bucket) {
+        bitmap.recycle();
+      }
+    }
+    mBuckets.clear();
+    mCount = 0;
+  }
+
+
+
+  public synchronized String toString()
+  {
+    return String.format("<%s:supported=%b:pooled=%d:reused=%d>", LTAG,
+        isReuseSupported(), mCount, mReused);
+  }
+
+
+
+  private static String makeKey(int width, int height)
+  {
+    return width + "x" + height;
+  }
+}
@@ -15,12 +15,13 @@ import android.net.Uri;
 
 import android.content.Context;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.ObjectInputStream;
 import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
@@ -33,6 +34,7 @@ import fm.audioboo.jni.FLACStreamEncoder;
 import fm.audioboo.jni.FLACStreamDecoder;
 
 import fm.audioboo.data.BooData;
+import fm.audioboo.data.BooDataCodec;
 import fm.audioboo.data.BooLocation;
 import fm.audioboo.data.Tag;
 import fm.audioboo.data.User;
@@ -95,6 +97,11 @@ public class Boo
   // Image file name
   public static final String IMAGE_FILE = "image.png";
   public static final String TEMP_IMAGE_FILE = "image.png";
+  // Extension for files being written; renamed to the target once complete.
+  public static final String TEMP_EXTENSION = ".tmp";
+
+  // Minimum time between coalesced writes, in msec.
+  public static final long WRITE_INTERVAL = 5000;
 
 
 
@@ -104,6 +111,14 @@ public class Boo
   public BooData                mData = null;
 
 
+  /***************************************************************************
+   * Private data
+   **/
+  // Time of the last write, and whether changes have been held back since.
+  private long                  mLastWritten = 0;
+  private boolean               mDirty = false;
+
+
   /***************************************************************************
    * Implementation
    **/
@@ -162,9 +177,15 @@ public class Boo
     }
 
     try {
-      ObjectInputStream is = new ObjectInputStream(new FileInputStream(f));
-      BooData boo = (BooData) is.readObject();
-      is.close();
+      // Also reads Boos serialized by previous versions; they're converted
+      // when they're next written.
+      InputStream is = new FileInputStream(f);
+      BooData boo;
+      try {
+        boo = BooDataCodec.decode(is);
+      } finally {
+        is.close();
+      }
 
       if (null == boo.mUpdatedAt) {
         boo.mUpdatedAt = new Date(f.lastModified());
@@ -181,11 +202,11 @@ public class Boo
       return new Boo(boo);
     } catch (FileNotFoundException ex) {
       Log.e(LTAG, "File not found: " + filename);
-    } catch (ClassNotFoundException ex) {
-      Log.e(LTAG, "Class not found: " + filename);
-      f.delete();
+    } catch (BooDataCodec.UnsupportedVersionException ex) {
+      // Keep it for the newer app version that wrote it.
+      Log.w(LTAG, "Skipping file: " + filename + ": " + ex.getMessage());
     } catch (IOException ex) {
-      Log.e(LTAG, "Error reading file: " + filename);
+      Log.e(LTAG, "Error reading file: " + filename + ": " + ex.getMessage());
       f.delete();
     }
 
@@ -222,22 +243,76 @@ public class Boo
 
 
 
+  /**
+   * Like writeToFile(), but writes at most once every WRITE_INTERVAL msec.
+   * Changes made in between are only marked as pending; use flush() to make
+   * sure they're written.
+   **/
+  public void writeToFileCoalesced()
+  {
+    if (System.currentTimeMillis() - mLastWritten < WRITE_INTERVAL) {
+      mDirty = true;
+      return;
+    }
+    writeToFile();
+  }
+
+
+
+  /**
+   * Writes changes held back by writeToFileCoalesced(), if there are any.
+   **/
+  public void flush()
+  {
+    if (mDirty) {
+      writeToFile();
+    }
+  }
+
+
+
+  /**
+   * Writes to a temporary file first, and renames it to filename once it's
+   * been synced to disk. Either the old or the new file contents survive a
+   * crash, never a partial file.
+   **/
   public void writeToFile(String filename)
   {
     mData.mUpdatedAt = new Date();
     //Log.d(LTAG, "Writing to file: " + this + " - " + filename);
     //Thread.dumpStack();
 
+    File target = new File(filename);
+    File temp = new File(filename + TEMP_EXTENSION);
+    boolean success = false;
     try {
-      ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(new File(filename)));
-      os.writeObject(mData);
-      os.flush();
-      os = null;
+      FileOutputStream fos = new FileOutputStream(temp);
+      try {
+        OutputStream os = new BufferedOutputStream(fos);
+        BooDataCodec.encode(mData, os);
+        os.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+
+      success = temp.renameTo(target);
+      if (!success) {
+        Log.e(LTAG, "Could not rename '" + temp + "' to '" + filename + "'");
+      }
     } catch (FileNotFoundException ex) {
       Log.e(LTAG, "File not found: " + filename);
     } catch (IOException ex) {
       Log.e(LTAG, "Error writing file '" + filename + "': " + ex.getMessage());
     }
+
+    if (success) {
+      mLastWritten = System.currentTimeMillis();
+      mDirty = false;
+    }
+    else {
+      temp.delete();
+    }
   }
 
 
@@ -26,4 +26,24 @@ public class BooList
   // Metadata
   public int    mOffset;
   public int    mCount;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public BooList()
+  {
+  }
+
+
+
+  /**
+   * Shallow copy; the clip list is copied, the Boos themselves are shared.
+   **/
+  public BooList(BooList other)
+  {
+    mClips.addAll(other.mClips);
+    mOffset = other.mOffset;
+    mCount = other.mCount;
+  }
 }
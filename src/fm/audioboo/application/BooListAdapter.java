@@ -131,16 +131,39 @@ public class BooListAdapter extends BaseExpandableListAdapter
    **/
   public static class ScrollListener implements AbsListView.OnScrollListener
   {
+    /**
+     * Notified whenever the list is scrolled to within a given number of
+     * items of its end.
+     **/
+    public static interface EndListener
+    {
+      public void onApproachingEnd();
+    }
+
+
     private BooListAdapter  mAdapter;
 
     private boolean         mSentInitial = false;
     private int             mFirst;
     private int             mCount;
 
+    private EndListener     mEndListener;
+    private int             mEndDistance;
+
 
     public ScrollListener(BooListAdapter adapter)
+    {
+      this(adapter, null, 0);
+    }
+
+
+
+    public ScrollListener(BooListAdapter adapter, EndListener endListener,
+        int endDistance)
     {
       mAdapter = adapter;
+      mEndListener = endListener;
+      mEndDistance = endDistance;
     }
 
 
@@ -155,6 +178,12 @@ public class BooListAdapter extends BaseExpandableListAdapter
         mSentInitial = true;
         mAdapter.startHeavyLifting(mFirst, mCount);
       }
+
+      if (null != mEndListener && visibleItemCount > 0
+          && firstVisibleItem + visibleItemCount + mEndDistance >= totalItemCount)
+      {
+        mEndListener.onApproachingEnd();
+      }
     }
 
 
@@ -47,6 +47,10 @@ public class BooListPaginator implements BooListAdapter.DataSource
   public static final String PAGE_KEY_FORMAT        = "fm.audioboo.cache.boolist-%d-%d-%d";
   public static final int    PAGE_TIMEOUT           = 300;
 
+  // Default distance from the end of the list (in items) at which the next
+  // page gets prefetched.
+  public static final int    PREFETCH_DISTANCE      = 5;
+
 
   /***************************************************************************
    * Result callback interface.
@@ -161,6 +165,13 @@ public class BooListPaginator implements BooListAdapter.DataSource
   private Date                                  mTimestamp;
   private boolean                               mRequesting = false;
 
+  // Prefetching of the next page into the object cache. A page whose
+  // prefetch failed isn't prefetched again; nextPage() fetches it as usual.
+  private int                                   mPrefetchDistance = PREFETCH_DISTANCE;
+  private API.Request                           mPrefetchRequest;
+  private String                                mPrefetchKey;
+  private String                                mFailedPrefetchKey;
+
   private Handler                               mHandler = new Handler(new Handler.Callback() {
       public boolean handleMessage(Message msg)
       {
@@ -328,6 +339,18 @@ public class BooListPaginator implements BooListAdapter.DataSource
 
 
 
+  /**
+   * Sets the distance from the end of the list (in items) at which the next
+   * page is fetched in the background. Zero disables prefetching. Takes
+   * effect with the next refresh.
+   **/
+  public void setPrefetchDistance(int distance)
+  {
+    mPrefetchDistance = distance;
+  }
+
+
+
   public void refresh(int booType)
   {
     reset(booType);
@@ -346,6 +369,9 @@ public class BooListPaginator implements BooListAdapter.DataSource
 
   public void reset(int booType)
   {
+    cancelPrefetch();
+    mFailedPrefetchKey = null;
+
     mBooType = booType;
     mAdapter = null;
     mPage = 1;
@@ -365,8 +391,7 @@ public class BooListPaginator implements BooListAdapter.DataSource
   private void request()
   {
     // Check in Cache first.
-    String key = String.format(PAGE_KEY_FORMAT, mBooType,
-        (mTimestamp.getTime() / 1000), mPage);
+    String key = pageKey(mPage);
     BooList list = (BooList) Globals.get().mObjectCache.get(key);
     if (null != list) {
       onReceiveBoos(list, false);
@@ -408,14 +433,14 @@ public class BooListPaginator implements BooListAdapter.DataSource
 
     if (cache) {
       // Put in cache.
-      String key = String.format(PAGE_KEY_FORMAT, mBooType,
-          (mTimestamp.getTime() / 1000), mPage);
-      Globals.get().mObjectCache.put(key, boos, PAGE_TIMEOUT);
+      Globals.get().mObjectCache.put(pageKey(mPage), boos, PAGE_TIMEOUT);
     }
 
-    // Either replace results or add results.
+    // Either replace results or add results. Later pages are appended to
+    // mBoos, so keep our own copy rather than modifying the list that's in the
+    // cache, or that was handed to other requesters of the same page.
     if (null == boos || 0 == boos.mOffset) {
-      mBoos = boos;
+      mBoos = (null == boos) ? null : new BooList(boos);
     }
     else {
       mBoos.mClips.addAll(boos.mClips);
@@ -436,7 +461,14 @@ public class BooListPaginator implements BooListAdapter.DataSource
           });
       mAdapter.setDisclosureListener(mDisclosureListener);
       activity.getExpandableListView().setAdapter(mAdapter);
-      activity.getExpandableListView().setOnScrollListener(new BooListAdapter.ScrollListener(mAdapter));
+      activity.getExpandableListView().setOnScrollListener(
+          new BooListAdapter.ScrollListener(mAdapter,
+            new BooListAdapter.ScrollListener.EndListener() {
+              public void onApproachingEnd()
+              {
+                prefetch();
+              }
+            }, mPrefetchDistance));
     }
     else {
       mAdapter.notifyDataSetChanged();
@@ -449,6 +481,80 @@ public class BooListPaginator implements BooListAdapter.DataSource
   }
 
 
+  private String pageKey(int page)
+  {
+    return String.format(PAGE_KEY_FORMAT, mBooType,
+        (mTimestamp.getTime() / 1000), page);
+  }
+
+
+
+  /**
+   * Fetches the page after the current one into the object cache, so that
+   * nextPage() can be served from there.
+   **/
+  private void prefetch()
+  {
+    if (mPrefetchDistance <= 0 || mRequesting || null != mPrefetchKey) {
+      return;
+    }
+
+    // If the last page wasn't full, there's nothing more to fetch.
+    if (null == mBoos || mBoos.mClips.size() < mPage * BOO_PAGE_SIZE) {
+      return;
+    }
+
+    final String key = pageKey(mPage + 1);
+    if (key.equals(mFailedPrefetchKey)
+        || null != Globals.get().mObjectCache.get(key))
+    {
+      return;
+    }
+
+    // Log.d(LTAG, "Prefetching page " + (mPage + 1));
+    mPrefetchKey = key;
+    mPrefetchRequest = Globals.get().mAPI.fetchBoos(mBooType,
+        new Handler(new Handler.Callback() {
+          public boolean handleMessage(Message msg)
+          {
+            // Ignore results for prefetches that have been cancelled since.
+            if (!key.equals(mPrefetchKey)) {
+              return true;
+            }
+            mPrefetchKey = null;
+            mPrefetchRequest = null;
+
+            if (API.ERR_SUCCESS == msg.what) {
+              Globals.get().mObjectCache.put(key, msg.obj, PAGE_TIMEOUT);
+            }
+            else {
+              // Don't retry on every scroll event.
+              mFailedPrefetchKey = key;
+            }
+            return true;
+          }
+        }),
+        mPage + 1, BOO_PAGE_SIZE, mTimestamp, API.LANE_BACKGROUND);
+    if (null == mPrefetchRequest) {
+      mPrefetchKey = null;
+      mFailedPrefetchKey = key;
+    }
+  }
+
+
+
+  private void cancelPrefetch()
+  {
+    if (null == mPrefetchKey) {
+      return;
+    }
+    Globals.get().mAPI.cancelRequest(mPrefetchRequest);
+    mPrefetchRequest = null;
+    mPrefetchKey = null;
+  }
+
+
+
   /***************************************************************************
    * BooListAdapter.DataSource implementation
    **/
@@ -12,9 +12,23 @@ package fm.audioboo.application;
 
 import java.util.List;
 import java.util.LinkedList;
-
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Map;
+import java.util.Comparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 import java.nio.ByteBuffer;
 
@@ -28,6 +42,11 @@ import android.util.Log;
  *
  * BooManager searches multiple paths for serialized Boos. It also contains
  * convenience functions like e.g. finding the latest Boo, etc.
+ *
+ * Each path contains an index file recording the few properties of each Boo
+ * that are needed for sorting them into drafts and uploads. Boo files are
+ * only read if they changed since they were indexed, or when the Boos
+ * themselves are requested.
  **/
 public class BooManager
 {
@@ -37,6 +56,20 @@ public class BooManager
   // Log ID
   private static final String LTAG  = "BooManager";
 
+  // Index file name & format version
+  private static final String INDEX_FILE            = ".booindex";
+  private static final int    INDEX_FORMAT_VERSION  = 1;
+
+  // Stored instead of an upload stage for drafts, and instead of a date if
+  // there is none.
+  private static final int    NO_UPLOAD             = -1;
+  private static final long   NO_DATE               = -1;
+
+  // Modification times on the SD card's file system have a resolution of two
+  // seconds; files modified more recently than that may change again without
+  // their modification time changing.
+  private static final long   MTIME_RESOLUTION      = 2000;
+
 
   /***************************************************************************
    * FileFilter for Boos
@@ -55,18 +88,45 @@ public class BooManager
         return false;
       }
 
-      // Try to construct a Boo from it. That's simplest for checking contents.
-      Boo b = Boo.constructFromFile(f.getPath());
-      if (null == b) {
-        //Log.w(LTAG, "Entry '" + f + "' is not a valid Boo file.");
-        return false;
-      }
+      // Contents are checked when the file is indexed.
+      return f.getName().endsWith(Boo.EXTENSION);
+    }
+  }
+
+
 
-      return true;
+  /***************************************************************************
+   * What the index knows about each Boo file.
+   **/
+  private static class IndexEntry
+  {
+    public String   mFilename;
+    public long     mModified;
+    public long     mLength;
+    public boolean  mIsMessage;
+    public int      mUploadStage = NO_UPLOAD;
+    public long     mRecordedAt = NO_DATE;
+
+
+    public boolean isCurrent(File f)
+    {
+      return mModified == f.lastModified() && mLength == f.length();
     }
   }
 
 
+
+  /***************************************************************************
+   * Sorts index entries like RECORDING_DATE_COMPARATOR sorts Boos.
+   **/
+  private static final Comparator<IndexEntry> RECORDING_DATE_COMPARATOR = new Comparator<IndexEntry>() {
+    public int compare(IndexEntry e1, IndexEntry e2)
+    {
+      return (e1.mRecordedAt < e2.mRecordedAt ? -1 : (e1.mRecordedAt == e2.mRecordedAt ? 0 : 1));
+    }
+  };
+
+
   /***************************************************************************
    * Private data
    **/
@@ -74,11 +134,21 @@ public class BooManager
   private List<String>  mPaths;
   // Preferred path for creating new Boos; an index into mPaths
   private int           mCreateIndex;
-  // Boos found.
+  // Index entries, by file name, and paths whose index has been loaded.
+  private HashMap<String, IndexEntry> mIndex = new HashMap<String, IndexEntry>();
+  private HashSet<String>             mIndexLoaded = new HashSet<String>();
+  // Boos found, sorted by recording date.
+  private List<IndexEntry>  mBooDraftEntries;
+  private List<IndexEntry>  mBooUploadEntries;
+  private List<IndexEntry>  mMessageDraftEntries;
+  private List<IndexEntry>  mMessageUploadEntries;
+  // Boos constructed from the above lists on demand.
   private List<Boo>     mBooDrafts;
   private List<Boo>     mBooUploads;
   private List<Boo>     mMessageDrafts;
   private List<Boo>     mMessageUploads;
+  // Boos read while indexing, so they needn't be read again when requested.
+  private HashMap<String, Boo>  mRecentlyRead = new HashMap<String, Boo>();
 
 
 
@@ -112,34 +182,80 @@ public class BooManager
 
 
 
-  public List<Boo> getBooDrafts()
+  public synchronized List<Boo> getBooDrafts()
   {
+    if (null == mBooDrafts) {
+      mBooDrafts = constructBoos(mBooDraftEntries);
+    }
     return mBooDrafts;
   }
 
 
 
-  public List<Boo> getMessageDrafts()
+  public synchronized List<Boo> getMessageDrafts()
   {
+    if (null == mMessageDrafts) {
+      mMessageDrafts = constructBoos(mMessageDraftEntries);
+    }
     return mMessageDrafts;
   }
 
 
 
-  public List<Boo> getBooUploads()
+  public synchronized List<Boo> getBooUploads()
   {
+    if (null == mBooUploads) {
+      mBooUploads = constructBoos(mBooUploadEntries);
+    }
     return mBooUploads;
   }
 
 
 
-  public List<Boo> getMessageUploads()
+  public synchronized List<Boo> getMessageUploads()
   {
+    if (null == mMessageUploads) {
+      mMessageUploads = constructBoos(mMessageUploadEntries);
+    }
     return mMessageUploads;
   }
 
 
 
+  /**
+   * Returns up to max Boo or message uploads, skipping those whose filenames
+   * are in skip. Messages come first, then Boos, each in order of their
+   * recording date. Only the returned Boos are read.
+   **/
+  public synchronized List<Boo> getNextUploads(int max, Set<String> skip)
+  {
+    List<IndexEntry> messages = new ArrayList<IndexEntry>(mMessageUploadEntries);
+    Collections.sort(messages, RECORDING_DATE_COMPARATOR);
+    List<IndexEntry> boos = new ArrayList<IndexEntry>(mBooUploadEntries);
+    Collections.sort(boos, RECORDING_DATE_COMPARATOR);
+
+    List<IndexEntry> uploads = new ArrayList<IndexEntry>(messages.size() + boos.size());
+    uploads.addAll(messages);
+    uploads.addAll(boos);
+
+    List<Boo> result = new LinkedList<Boo>();
+    for (IndexEntry entry : uploads) {
+      if (result.size() >= max) {
+        break;
+      }
+      if (null != skip && skip.contains(entry.mFilename)) {
+        continue;
+      }
+      Boo b = constructBoo(entry);
+      if (null != b) {
+        result.add(b);
+      }
+    }
+    return result;
+  }
+
+
+
   public Boo createBoo()
   {
     // First determine what the preferred directory is for creating Boos.
@@ -262,14 +378,19 @@ public class BooManager
 
 
 
-  public void rebuildIndex()
+  /**
+   * Finds all Boos in the search paths. Boo files that have not changed since
+   * the last time are not read again.
+   **/
+  public synchronized void rebuildIndex()
   {
-    List<Boo> booDrafts = new LinkedList<Boo>();
-    List<Boo> booUploads = new LinkedList<Boo>();
-    List<Boo> messageDrafts = new LinkedList<Boo>();
-    List<Boo> messageUploads = new LinkedList<Boo>();
+    List<IndexEntry> booDrafts = new ArrayList<IndexEntry>();
+    List<IndexEntry> booUploads = new ArrayList<IndexEntry>();
+    List<IndexEntry> messageDrafts = new ArrayList<IndexEntry>();
+    List<IndexEntry> messageUploads = new ArrayList<IndexEntry>();
 
     BooFileFilter filter = new BooFileFilter();
+    mRecentlyRead.clear();
 
     for (String path : mPaths) {
       // Log.d(LTAG, "Searching for Boos in path '" + path + "'...");
@@ -301,58 +422,251 @@ public class BooManager
         continue;
       }
 
+      String prefix = d.getPath() + File.separator;
+      if (!mIndexLoaded.contains(path)) {
+        readIndex(path, prefix);
+        mIndexLoaded.add(path);
+      }
+
+      boolean changed = false;
+      HashSet<String> found = new HashSet<String>();
       for (File f : localBoos) {
-        Boo b = Boo.constructFromFile(f.getPath());
-        if (null == b) {
-          Log.w(LTAG, "Could not construct Boo from '" + f + "'.");
-          continue;
+        String filename = f.getPath();
+        IndexEntry entry = mIndex.get(filename);
+        if (null == entry || !entry.isCurrent(f)) {
+          entry = indexBoo(f);
+          changed = true;
+          if (null == entry) {
+            mIndex.remove(filename);
+            continue;
+          }
+          mIndex.put(filename, entry);
         }
+        found.add(filename);
 
-        if (null == b.mData.mUploadInfo) {
-          if (b.mData.mIsMessage) {
-            messageDrafts.add(b);
+        if (NO_UPLOAD == entry.mUploadStage) {
+          if (entry.mIsMessage) {
+            messageDrafts.add(entry);
           }
           else {
-            booDrafts.add(b);
+            booDrafts.add(entry);
           }
         }
         else {
-          // XXX Hack: works around a bug in PublishActivity that permitted null-
-          //     titled Boos for a while.
-          if (null == b.mData.mTitle) {
-            b.mData.mTitle = Globals.get().mTitleGenerator.getTitle();
-            b.writeToFile();
-          }
-
-          if (b.mData.mIsMessage) {
-            messageUploads.add(b);
+          if (entry.mIsMessage) {
+            messageUploads.add(entry);
           }
           else {
-            booUploads.add(b);
+            booUploads.add(entry);
           }
         }
+      }
+
+      // Forget about Boos that no longer exist.
+      for (Iterator<String> iter = mIndex.keySet().iterator() ; iter.hasNext() ; ) {
+        String filename = iter.next();
+        if (filename.startsWith(prefix) && !found.contains(filename)) {
+          iter.remove();
+          changed = true;
+        }
+      }
 
-        // Log.d(LTAG, "*** boo: " + b);
-        // Log.d(LTAG, "upload info: " + b.mData.mUploadInfo);
-        // Log.d(LTAG, "msg: " + b.mData.mIsMessage);
+      if (changed) {
+        writeIndex(path, prefix);
       }
     }
 
-    Collections.sort(booDrafts, Boo.RECORDING_DATE_COMPARATOR);
-    mBooDrafts = booDrafts;
+    Collections.sort(booDrafts, RECORDING_DATE_COMPARATOR);
+    mBooDraftEntries = booDrafts;
 
-    Collections.sort(booUploads, Boo.RECORDING_DATE_COMPARATOR);
-    mBooUploads = booUploads;
+    Collections.sort(booUploads, RECORDING_DATE_COMPARATOR);
+    mBooUploadEntries = booUploads;
 
-    Collections.sort(messageDrafts, Boo.RECORDING_DATE_COMPARATOR);
-    mMessageDrafts = messageDrafts;
+    Collections.sort(messageDrafts, RECORDING_DATE_COMPARATOR);
+    mMessageDraftEntries = messageDrafts;
 
-    Collections.sort(messageUploads, Boo.RECORDING_DATE_COMPARATOR);
-    mMessageUploads = messageUploads;
+    Collections.sort(messageUploads, RECORDING_DATE_COMPARATOR);
+    mMessageUploadEntries = messageUploads;
+
+    mBooDrafts = null;
+    mBooUploads = null;
+    mMessageDrafts = null;
+    mMessageUploads = null;
   }
 
 
 
+  /**
+   * Reads a Boo file, and returns an index entry for it, or null if it's not
+   * a valid Boo.
+   **/
+  private IndexEntry indexBoo(File f)
+  {
+    Boo b = Boo.constructFromFile(f.getPath());
+    if (null == b) {
+      Log.w(LTAG, "Could not construct Boo from '" + f + "'.");
+      return null;
+    }
+
+    // XXX Hack: works around a bug in PublishActivity that permitted null-
+    //     titled Boos for a while.
+    if (null != b.mData.mUploadInfo && null == b.mData.mTitle) {
+      b.mData.mTitle = Globals.get().mTitleGenerator.getTitle();
+      b.writeToFile();
+    }
+
+    // Log.d(LTAG, "*** boo: " + b);
+    // Log.d(LTAG, "upload info: " + b.mData.mUploadInfo);
+    // Log.d(LTAG, "msg: " + b.mData.mIsMessage);
+
+    IndexEntry entry = new IndexEntry();
+    entry.mFilename = f.getPath();
+    entry.mModified = f.lastModified();
+    if (System.currentTimeMillis() - entry.mModified < MTIME_RESOLUTION) {
+      // Re-read next time.
+      entry.mModified = NO_DATE;
+    }
+    entry.mLength = f.length();
+    entry.mIsMessage = b.mData.mIsMessage;
+    if (null != b.mData.mUploadInfo) {
+      entry.mUploadStage = b.mData.mUploadInfo.mUploadStage;
+    }
+    if (null != b.mData.mRecordedAt) {
+      entry.mRecordedAt = b.mData.mRecordedAt.getTime();
+    }
+
+    mRecentlyRead.put(entry.mFilename, b);
+    return entry;
+  }
+
+
+
+  private Boo constructBoo(IndexEntry entry)
+  {
+    Boo b = mRecentlyRead.remove(entry.mFilename);
+    if (null == b) {
+      b = Boo.constructFromFile(entry.mFilename);
+    }
+    return b;
+  }
+
+
+
+  private List<Boo> constructBoos(List<IndexEntry> entries)
+  {
+    List<Boo> boos = new LinkedList<Boo>();
+    if (null == entries) {
+      return boos;
+    }
+    for (IndexEntry entry : entries) {
+      Boo b = constructBoo(entry);
+      if (null == b) {
+        Log.w(LTAG, "Could not construct Boo from '" + entry.mFilename + "'.");
+        continue;
+      }
+      boos.add(b);
+    }
+    return boos;
+  }
+
+
+
+  /**
+   * Reads the index file in the given path into mIndex; file names in it are
+   * relative to prefix. A missing or broken index just means all Boos get
+   * read.
+   **/
+  private void readIndex(String path, String prefix)
+  {
+    File f = new File(path + File.separator + INDEX_FILE);
+    if (!f.exists()) {
+      return;
+    }
+
+    DataInputStream is = null;
+    try {
+      is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      if (INDEX_FORMAT_VERSION != is.readInt()) {
+        Log.w(LTAG, "Ignoring index in '" + path + "' with unknown format.");
+        return;
+      }
+
+      int count = is.readInt();
+      for (int i = 0 ; i < count ; ++i) {
+        IndexEntry entry = new IndexEntry();
+        entry.mFilename = prefix + is.readUTF();
+        entry.mModified = is.readLong();
+        entry.mLength = is.readLong();
+        entry.mIsMessage = is.readBoolean();
+        entry.mUploadStage = is.readInt();
+        entry.mRecordedAt = is.readLong();
+        mIndex.put(entry.mFilename, entry);
+      }
+    } catch (IOException ex) {
+      Log.w(LTAG, "Could not read index in '" + path + "': " + ex.getMessage());
+    } finally {
+      if (null != is) {
+        try {
+          is.close();
+        } catch (IOException ex) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Writes the index entries for files in the given path, relative to
+   * prefix. The index is written to a temporary file first, and renamed into
+   * place.
+   **/
+  private void writeIndex(String path, String prefix)
+  {
+    List<IndexEntry> entries = new ArrayList<IndexEntry>();
+    for (Map.Entry<String, IndexEntry> entry : mIndex.entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        entries.add(entry.getValue());
+      }
+    }
+
+    File f = new File(path + File.separator + INDEX_FILE);
+    File temp = new File(f.getPath() + ".tmp");
+
+    DataOutputStream os = null;
+    boolean success = false;
+    try {
+      os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      os.writeInt(INDEX_FORMAT_VERSION);
+      os.writeInt(entries.size());
+      for (IndexEntry entry : entries) {
+        os.writeUTF(entry.mFilename.substring(prefix.length()));
+        os.writeLong(entry.mModified);
+        os.writeLong(entry.mLength);
+        os.writeBoolean(entry.mIsMessage);
+        os.writeInt(entry.mUploadStage);
+        os.writeLong(entry.mRecordedAt);
+      }
+      success = true;
+    } catch (IOException ex) {
+      Log.w(LTAG, "Could not write index in '" + path + "': " + ex.getMessage());
+    } finally {
+      if (null != os) {
+        try {
+          os.close();
+        } catch (IOException ex) {
+          success = false;
+        }
+      }
+    }
+
+    if (!success || !temp.renameTo(f)) {
+      temp.delete();
+    }
+  }
+
+
 
   private String ensureDataDir(Boo boo)
   {
@@ -0,0 +1,261 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Owns the HttpClient shared by all API requests and image fetches, and
+ * manages its persistent connections:
+ * - Limits the number of connections in total and per route.
+ * - Keeps connections alive for as long as the server allows, or a default
+ *   duration if the server doesn't say.
+ * - Closes connections that have been idle for too long from a background
+ *   thread, before the server or a NAT box drops them on us.
+ * - Counts connections opened, reused and evicted.
+ **/
+public class ConnectionPool
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG                = "ConnectionPool";
+
+  // Idle connections are checked for at this interval.
+  private static final int    REAPER_INTERVAL     = 15 * 1000;
+
+
+  /***************************************************************************
+   * Background thread closing expired and idle connections.
+   **/
+  private class Reaper extends Thread
+  {
+    public volatile boolean mKeepRunning = true;
+
+
+    public Reaper()
+    {
+      super("ConnectionPool.Reaper");
+      setDaemon(true);
+      setPriority(Thread.MIN_PRIORITY);
+    }
+
+
+
+    @Override
+    public void run()
+    {
+      while (mKeepRunning) {
+        try {
+          sleep(REAPER_INTERVAL);
+        } catch (InterruptedException ex) {
+          // Ignore
+        }
+        if (!mKeepRunning) {
+          break;
+        }
+
+        int before = mManager.getConnectionsInPool();
+        mManager.closeExpiredConnections();
+        mManager.closeIdleConnections(mIdleTimeout, TimeUnit.MILLISECONDS);
+        int after = mManager.getConnectionsInPool();
+
+        if (after < before) {
+          synchronized (ConnectionPool.this)
+          {
+            mEvicted += before - after;
+          }
+          // Log.d(LTAG, "Evicted " + (before - after) + " connections.");
+        }
+      }
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private ThreadSafeClientConnManager mManager;
+  private DefaultHttpClient           mClient;
+
+  private volatile long               mKeepAlive;
+  private volatile long               mIdleTimeout;
+
+  private Reaper                      mReaper;
+
+  // Statistics
+  private long                        mOpened;
+  private long                        mReused;
+  private long                        mEvicted;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * keepAlive is used for connections for which the server does not specify
+   * a timeout; idleTimeout is the time after which unused connections are
+   * closed regardless. Both are in milliseconds.
+   **/
+  public ConnectionPool(HttpParams params, SchemeRegistry registry,
+      int maxTotal, int maxPerRoute, long keepAlive, long idleTimeout)
+  {
+    mKeepAlive = keepAlive;
+    mIdleTimeout = idleTimeout;
+
+    // The default of two connections per route is too few for the number of
+    // threads talking to the API host.
+    ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerRoute));
+
+    mManager = new ThreadSafeClientConnManager(params, registry);
+    mClient = new DefaultHttpClient(mManager, params);
+
+    // Honour the server's Keep-Alive header, but don't keep connections
+    // around forever if it's missing.
+    mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+      private DefaultConnectionKeepAliveStrategy mDefault = new DefaultConnectionKeepAliveStrategy();
+
+      public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+      {
+        long duration = mDefault.getKeepAliveDuration(response, context);
+        if (duration < 0) {
+          return mKeepAlive;
+        }
+        return duration;
+      }
+    });
+
+    // A connection that has not sent a request before was opened for this
+    // one; anything else was reused from the pool.
+    mClient.addRequestInterceptor(new HttpRequestInterceptor() {
+      public void process(HttpRequest request, HttpContext context)
+      {
+        Object obj = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (!(obj instanceof HttpConnection)) {
+          return;
+        }
+        HttpConnection conn = (HttpConnection) obj;
+
+        synchronized (ConnectionPool.this)
+        {
+          if (0 == conn.getMetrics().getRequestCount()) {
+            ++mOpened;
+          }
+          else {
+            ++mReused;
+          }
+        }
+      }
+    });
+
+    mReaper = new Reaper();
+    mReaper.start();
+  }
+
+
+
+  public DefaultHttpClient getClient()
+  {
+    return mClient;
+  }
+
+
+
+  public ThreadSafeClientConnManager getConnectionManager()
+  {
+    return mManager;
+  }
+
+
+
+  /**
+   * Sets the keep-alive duration for connections for which the server does
+   * not specify one, in milliseconds.
+   **/
+  public void setKeepAlive(long keepAlive)
+  {
+    mKeepAlive = keepAlive;
+  }
+
+
+
+  /**
+   * Sets the time after which idle connections are closed, in milliseconds.
+   **/
+  public void setIdleTimeout(long idleTimeout)
+  {
+    mIdleTimeout = idleTimeout;
+  }
+
+
+
+  public synchronized long getConnectionsOpened()
+  {
+    return mOpened;
+  }
+
+
+
+  public synchronized long getConnectionsReused()
+  {
+    return mReused;
+  }
+
+
+
+  public synchronized long getConnectionsEvicted()
+  {
+    return mEvicted;
+  }
+
+
+
+  public String toString()
+  {
+    return String.format("<connections:opened=%d:reused=%d:evicted=%d:pooled=%d>",
+        getConnectionsOpened(), getConnectionsReused(), getConnectionsEvicted(),
+        mManager.getConnectionsInPool());
+  }
+
+
+
+  /**
+   * Stops the reaper and closes all connections.
+   **/
+  public void shutdown()
+  {
+    Log.i(LTAG, "Shutting down: " + this);
+    mReaper.mKeepRunning = false;
+    mReaper.interrupt();
+    mManager.shutdown();
+  }
+}
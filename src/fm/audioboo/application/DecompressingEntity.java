@@ -0,0 +1,175 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.Header;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Wraps a gzip or deflate encoded response entity, and decodes its content
+ * while it's being read. Also keeps track of the number of bytes received
+ * on the wire.
+ **/
+class DecompressingEntity extends HttpEntityWrapper
+{
+  /***************************************************************************
+   * Public constants
+   **/
+  // Content codings we can decode.
+  public static final String ENCODING_GZIP      = "gzip";
+  public static final String ENCODING_X_GZIP    = "x-gzip";
+  public static final String ENCODING_DEFLATE   = "deflate";
+
+  // Value for the Accept-Encoding header.
+  public static final String ACCEPT_ENCODING    = "gzip, deflate";
+
+
+  /***************************************************************************
+   * Counts bytes read through it.
+   **/
+  public static class CountingInputStream extends FilterInputStream
+  {
+    private long  mCount = 0;
+
+
+    public CountingInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+
+
+    public long getCount()
+    {
+      return mCount;
+    }
+
+
+
+    @Override
+    public int read() throws IOException
+    {
+      int b = super.read();
+      if (-1 != b) {
+        ++mCount;
+      }
+      return b;
+    }
+
+
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        mCount += read;
+      }
+      return read;
+    }
+
+
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      long skipped = super.skip(n);
+      mCount += skipped;
+      return skipped;
+    }
+
+
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private String              mEncoding;
+  private CountingInputStream mWire;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public DecompressingEntity(HttpEntity entity, String encoding)
+  {
+    super(entity);
+    mEncoding = encoding;
+  }
+
+
+
+  /**
+   * Returns true if the given content coding can be decoded by this class.
+   **/
+  public static boolean canDecode(String encoding)
+  {
+    return ENCODING_GZIP.equalsIgnoreCase(encoding)
+      || ENCODING_X_GZIP.equalsIgnoreCase(encoding)
+      || ENCODING_DEFLATE.equalsIgnoreCase(encoding);
+  }
+
+
+
+  @Override
+  public InputStream getContent() throws IOException
+  {
+    mWire = new CountingInputStream(wrappedEntity.getContent());
+    if (ENCODING_DEFLATE.equalsIgnoreCase(mEncoding)) {
+      return new InflaterInputStream(mWire);
+    }
+    return new GZIPInputStream(mWire);
+  }
+
+
+
+  /**
+   * Returns the number of encoded bytes read so far.
+   **/
+  public long getWireBytes()
+  {
+    return (null == mWire) ? 0 : mWire.getCount();
+  }
+
+
+
+  @Override
+  public long getContentLength()
+  {
+    // Unknown until decoded.
+    return -1;
+  }
+
+
+
+  @Override
+  public Header getContentEncoding()
+  {
+    // The content we return is no longer encoded.
+    return null;
+  }
+}
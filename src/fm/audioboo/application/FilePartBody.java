@@ -15,9 +15,11 @@ import org.apache.http.entity.mime.content.AbstractContentBody;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import org.apache.http.entity.mime.MIME;
 
 import java.security.MessageDigest;
@@ -27,6 +29,11 @@ import android.util.Log;
 /**
  * Similar to FileBody from org.apache, but you specify parts of a file, via an
  * offset and size.
+ *
+ * The part is memory mapped the first time it's needed, so hashing it for the
+ * request signature and sending it read it from disk only once. The mapping
+ * is dropped once the part was sent, rather than when it's garbage collected;
+ * accessing a mapping of a file that was truncated in the meantime crashes.
  **/
 public class FilePartBody extends AbstractContentBody
 {
@@ -35,6 +42,18 @@ public class FilePartBody extends AbstractContentBody
    **/
   private static final String LTAG = "FilePartBody";
 
+  // Size of the buffer for copying to output streams.
+  private static final int    BUFFER_SIZE = 8192;
+
+  // Copy buffers, one per thread.
+  private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
 
 
   /***************************************************************************
@@ -44,6 +63,9 @@ public class FilePartBody extends AbstractContentBody
   private long  mOffset;
   private long  mSize;
 
+  // Mapped part of the file; see getData()
+  private ByteBuffer  mData;
+
 
 
   /***************************************************************************
@@ -82,15 +104,21 @@ public class FilePartBody extends AbstractContentBody
 
 
 
-  public void writeTo(final OutputStream out) throws IOException
+  public void writeTo(OutputStream out) throws IOException
   {
-    consume(new Consumer() {
-        public void consume(byte[] data, int size) throws IOException
-        {
-          out.write(data, 0, size);
-        }
-    });
-    out.flush();
+    try {
+      ByteBuffer data = getData();
+      byte[] buf = sBuffer.get();
+      while (data.hasRemaining()) {
+        int size = Math.min(data.remaining(), buf.length);
+        data.get(buf, 0, size);
+        out.write(buf, 0, size);
+      }
+      out.flush();
+    } finally {
+      // Sent; if it needs to be sent again, it gets mapped again.
+      unmap();
+    }
   }
 
 
@@ -123,53 +151,45 @@ public class FilePartBody extends AbstractContentBody
 
 
 
-  public void updateHash(final MessageDigest digest)
+  public void updateHash(MessageDigest digest)
   {
     try {
-      consume(new Consumer() {
-          public void consume(byte[] data, int size) throws IOException
-          {
-            digest.update(data, 0, size);
-          }
-      });
+      digest.update(getData());
     } catch (IOException ex) {
       Log.e(LTAG, "Got exception: " + ex);
     }
   }
 
 
-  /***************************************************************************
-   * Helpers for consuming part of the file
+
+  /**
+   * Returns the part of the file as a buffer positioned at its start. The
+   * file is mapped on first use; later calls share the mapping, but each
+   * gets its own position.
    **/
-  private static interface Consumer
+  private synchronized ByteBuffer getData() throws IOException
   {
-    public void consume(byte[] data, int size) throws IOException;
+    if (null == mData) {
+      // Log.d(LTAG, "mapping: " + mFile + " @ " + mOffset + "+" + mSize);
+      FileInputStream in = new FileInputStream(mFile);
+      try {
+        mData = in.getChannel().map(FileChannel.MapMode.READ_ONLY, mOffset, mSize);
+      } finally {
+        // The mapping stays valid after the channel is closed.
+        in.close();
+      }
+    }
+    return mData.duplicate();
   }
 
-  private void consume(Consumer con) throws IOException
-  {
-    // Log.d(LTAG, "consume: " + con);
-    InputStream in = new FileInputStream(mFile);
-    long skipped = in.skip(mOffset);
-    if (skipped != mOffset) {
-      throw new IOException("Seek failed!");
-    }
 
-    try {
-      byte[] buf = new byte[8192];
-      long remaining = mSize;
-      do {
-        int read = in.read(buf, 0, (int) Math.min(remaining, buf.length));
-        if (read <= 0) {
-          break;
-        }
-        // Log.d(LTAG, "read: " + read);
-        con.consume(buf, read);
-        remaining -= read;
-      } while (true);
-    } finally {
-      in.close();
-    }
-    // Log.d(LTAG, "done");
+
+  /**
+   * Drops the mapping; the memory is released once the buffers returned by
+   * getData() are no longer in use.
+   **/
+  private synchronized void unmap()
+  {
+    mData = null;
   }
 }
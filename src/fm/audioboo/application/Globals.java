@@ -349,7 +349,7 @@ public class Globals
   {
     mContext = new WeakReference<Context>(context);
 
-    mAPI = new API();
+    mAPI = new API(context);
     mImageCache = new ImageCache(context, IMAGE_CACHE_MAX);
 
     boolean bindResult = BooPlayerClient.bindService(context, this);
@@ -377,11 +377,22 @@ public class Globals
 
   private void release()
   {
-    mAPI = null;
+    // The image cache fetches through the API, so it has to stop first.
+    if (null != mImageCache) {
+      mImageCache.release();
+    }
     mImageCache = null;
 
+    if (null != mAPI) {
+      mAPI.release();
+    }
+    mAPI = null;
+
     mTitleGenerator = null;
 
+    if (null != mObjectCache) {
+      mObjectCache.release();
+    }
     mObjectCache = null;
   }
 
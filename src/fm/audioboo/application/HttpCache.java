@@ -0,0 +1,432 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+/**
+ * Disk cache for API responses that carry an ETag or Last-Modified header.
+ * Each response is stored in a single file, named after a hash of its cache
+ * key, holding the validators followed by the response body. Cached responses
+ * are never served without revalidation; the cache only saves transferring
+ * bodies that the server reports as unmodified.
+ *
+ * Once the cache grows beyond its maximum size, the least recently used
+ * entries are removed.
+ **/
+class HttpCache
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG              = "HttpCache";
+
+  // File format version; entries of other versions are ignored.
+  private static final int    FORMAT_VERSION    = 1;
+
+  // Suffix for entries that are still being written.
+  private static final String TEMP_SUFFIX       = ".tmp";
+
+  // Buffer size for reading and writing entries
+  private static final int    BUFFER_SIZE       = 8192;
+
+
+  /***************************************************************************
+   * A cached response. The body stream is positioned after the validators,
+   * and must be closed by the caller.
+   **/
+  public static class Entry
+  {
+    public String       mETag;
+    public String       mLastModified;
+    public InputStream  mBody;
+  }
+
+
+
+  /***************************************************************************
+   * Copies everything read from the response into a temporary file. Once the
+   * response has been found to be valid, commit() copies the remainder of the
+   * response, and the temporary file replaces the cache entry. Otherwise, or
+   * if reading fails, the entry is discarded; closing the stream without
+   * calling commit() is the same as calling abort().
+   **/
+  public class StoringInputStream extends FilterInputStream
+  {
+    private File              mTarget;
+    private File              mTemp;
+    private DataOutputStream  mOut;
+    private boolean           mFailed = false;
+    private boolean           mFinished = false;
+    private boolean           mClosed = false;
+
+
+    public StoringInputStream(InputStream in, File target, File temp,
+        DataOutputStream out)
+    {
+      super(in);
+      mTarget = target;
+      mTemp = temp;
+      mOut = out;
+    }
+
+
+
+    @Override
+    public int read() throws IOException
+    {
+      byte[] buf = new byte[1];
+      int read = read(buf, 0, 1);
+      return (-1 == read) ? -1 : (buf[0] & 0xff);
+    }
+
+
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      int read = 0;
+      try {
+        read = super.read(buffer, offset, length);
+      } catch (IOException ex) {
+        mFailed = true;
+        throw ex;
+      }
+
+      if (read > 0 && !mFailed) {
+        try {
+          mOut.write(buffer, offset, read);
+        } catch (IOException ex) {
+          // Writing to the cache failed; don't fail the response for that.
+          Log.e(LTAG, "Could not write cache entry: " + ex.getMessage());
+          mFailed = true;
+        }
+      }
+      return read;
+    }
+
+
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      // Skipped bytes must end up in the cache as well.
+      byte[] buf = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(buf, 0, buf.length);
+      return (-1 == read) ? 0 : read;
+    }
+
+
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+
+
+    /**
+     * Stores the response in the cache. Must be called before the stream is
+     * closed.
+     **/
+    public void commit()
+    {
+      if (mFinished) {
+        return;
+      }
+
+      // Copy whatever the reader didn't consume.
+      if (!mFailed) {
+        try {
+          byte[] buf = new byte[BUFFER_SIZE];
+          while (-1 != read(buf, 0, buf.length)) {
+            // Nothing to do; read() copies.
+          }
+        } catch (IOException ex) {
+          mFailed = true;
+        }
+      }
+      finish(!mFailed);
+    }
+
+
+
+    /**
+     * Discards the response instead of storing it.
+     **/
+    public void abort()
+    {
+      finish(false);
+    }
+
+
+
+    @Override
+    public void close() throws IOException
+    {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+
+      try {
+        abort();
+      } finally {
+        super.close();
+      }
+    }
+
+
+
+    private void finish(boolean success)
+    {
+      if (mFinished) {
+        return;
+      }
+      mFinished = true;
+
+      try {
+        mOut.close();
+      } catch (IOException ex) {
+        success = false;
+      }
+      HttpCache.this.commit(mTemp, mTarget, success);
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private File    mDir;
+  private long    mMaxSize;
+
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public HttpCache(File dir, long maxSize)
+  {
+    mDir = dir;
+    mMaxSize = maxSize;
+
+    // Remove any entries left over from interrupted writes.
+    File[] files = mDir.listFiles();
+    if (null != files) {
+      for (File f : files) {
+        if (f.getName().endsWith(TEMP_SUFFIX)) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Returns the cached entry for the given key, or null if there is none.
+   **/
+  public Entry get(String key)
+  {
+    File file = fileForKey(key);
+    if (!file.exists()) {
+      return null;
+    }
+
+    DataInputStream is = null;
+    try {
+      is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      if (FORMAT_VERSION != is.readInt()) {
+        is.close();
+        file.delete();
+        return null;
+      }
+
+      Entry entry = new Entry();
+      entry.mETag = readOptionalString(is);
+      entry.mLastModified = readOptionalString(is);
+      entry.mBody = is;
+      return entry;
+
+    } catch (IOException ex) {
+      Log.e(LTAG, "Could not read cache entry: " + ex.getMessage());
+      if (null != is) {
+        try {
+          is.close();
+        } catch (IOException ex2) {
+          // Ignore
+        }
+      }
+      file.delete();
+      return null;
+    }
+  }
+
+
+
+  /**
+   * Marks the entry for the given key as used, e.g. when it was served after
+   * revalidation.
+   **/
+  public void touch(String key)
+  {
+    fileForKey(key).setLastModified(System.currentTimeMillis());
+  }
+
+
+
+  /**
+   * Returns a stream that reads the given response body, and stores it under
+   * the given key once it's been committed; see StoringInputStream. At least
+   * one of the validators must be non-null. If no entry can be created, the
+   * body is returned as is.
+   **/
+  public InputStream store(String key, String etag, String lastModified,
+      InputStream body)
+  {
+    File target = fileForKey(key);
+    File temp = new File(target.getPath() + "." + Thread.currentThread().getId()
+        + TEMP_SUFFIX);
+
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(temp), BUFFER_SIZE));
+      out.writeInt(FORMAT_VERSION);
+      writeOptionalString(out, etag);
+      writeOptionalString(out, lastModified);
+
+      return new StoringInputStream(body, target, temp, out);
+
+    } catch (IOException ex) {
+      Log.e(LTAG, "Could not create cache entry: " + ex.getMessage());
+      temp.delete();
+      return body;
+    }
+  }
+
+
+
+  /**
+   * Removes the entry for the given key, if it exists.
+   **/
+  public void remove(String key)
+  {
+    fileForKey(key).delete();
+  }
+
+
+
+  private void commit(File temp, File target, boolean success)
+  {
+    if (!success || !temp.renameTo(target)) {
+      temp.delete();
+      return;
+    }
+    trim();
+  }
+
+
+
+  /**
+   * Removes least recently used entries until the cache is within its
+   * maximum size.
+   **/
+  private synchronized void trim()
+  {
+    File[] files = mDir.listFiles();
+    if (null == files) {
+      return;
+    }
+
+    long size = 0;
+    for (File f : files) {
+      size += f.length();
+    }
+    if (size <= mMaxSize) {
+      return;
+    }
+
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2)
+      {
+        long m1 = f1.lastModified();
+        long m2 = f2.lastModified();
+        return (m1 < m2 ? -1 : (m1 == m2 ? 0 : 1));
+      }
+    });
+
+    for (int i = 0 ; i < files.length && size > mMaxSize ; ++i) {
+      if (files[i].getName().endsWith(TEMP_SUFFIX)) {
+        continue;
+      }
+      long length = files[i].length();
+      if (files[i].delete()) {
+        size -= length;
+      }
+    }
+  }
+
+
+
+  private File fileForKey(String key)
+  {
+    try {
+      MessageDigest m = MessageDigest.getInstance("SHA-1");
+      String name = new BigInteger(1, m.digest(key.getBytes("UTF-8"))).toString(16);
+      return new File(mDir, name);
+    } catch (java.security.NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex.getMessage());
+    } catch (java.io.UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex.getMessage());
+    }
+  }
+
+
+
+  private static String readOptionalString(DataInputStream is) throws IOException
+  {
+    if (!is.readBoolean()) {
+      return null;
+    }
+    return is.readUTF();
+  }
+
+
+
+  private static void writeOptionalString(DataOutputStream os, String value) throws IOException
+  {
+    os.writeBoolean(null != value);
+    if (null != value) {
+      os.writeUTF(value);
+    }
+  }
+}
@@ -16,15 +16,16 @@ import android.content.SharedPreferences;
 
 import android.net.Uri;
 
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Message;
 
 import android.database.Cursor;
 import android.database.SQLException;
-import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 
 import android.content.ContentValues;
 
@@ -32,13 +33,26 @@ import android.provider.BaseColumns;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import java.math.BigInteger;
+
+import java.security.MessageDigest;
+
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import java.lang.ref.WeakReference;
 
@@ -47,6 +61,10 @@ import android.util.Log;
 /**
  * Cache for images downloaded for Boos/Users. Limits the cache contents to a
  * certain number of least recently used items.
+ *
+ * Each image is stored in its own file, named after a hash of its cache key
+ * and dimensions. The database only holds an index of the files, which is
+ * used for finding the least recently used ones.
  **/
 public class ImageCache extends SQLiteOpenHelper
 {
@@ -57,9 +75,18 @@ public class ImageCache extends SQLiteOpenHelper
   private static final String LTAG  = "ImageCache";
 
   // Database file & version
-  private static final String DATABASE_NAME     = "imagecache.db";
+  private static final String DATABASE_NAME     = "imageindex.db";
   private static final int DATABASE_VERSION     = 1;
 
+  // Database that held image data in BLOBs; deleted if found.
+  private static final String OLD_DATABASE_NAME = "imagecache.db";
+
+  // Directory holding the image files.
+  private static final String IMAGE_DIR         = "images";
+
+  // Suffix for files being written.
+  private static final String TEMP_SUFFIX       = ".tmp";
+
   // Table names
   private static final String CACHE_TABLE       = "cache";
 
@@ -67,10 +94,23 @@ public class ImageCache extends SQLiteOpenHelper
   private static final String _ID               = BaseColumns._ID;
   private static final String DIMENSIONS        = "dimensions";
   private static final String ATIME             = "atime";
-  private static final String DATA              = "data";
+  private static final String SIZE              = "size";
+
+  // Buffer size for writing compressed images to disk
+  private static final int WRITE_BUFFER_SIZE    = 8192;
+
+  // Default format and quality for scaled images. Images with an alpha
+  // channel are always stored as PNG.
+  private static final Bitmap.CompressFormat DEFAULT_SCALED_FORMAT  = Bitmap.CompressFormat.JPEG;
+  private static final int DEFAULT_SCALED_QUALITY                   = 85;
 
-  // Chunk size for converting a Bitmap to a compressed byte stream
-  private static final int COMPRESS_CHUNK_SIZE  = 8192;
+  // Number of threads fetching images.
+  private static final int FETCHER_THREADS      = 3;
+
+  // Access times are written once this many have been recorded, or after
+  // the interval (in msec) has passed, whichever comes first.
+  private static final int ATIME_BATCH_SIZE     = 32;
+  private static final int ATIME_FLUSH_INTERVAL = 10 * 1000;
 
   // Image cache preferences keys.
   private static final String PREFS_KEY_FIX1_APPLIED    = "image-cache.fixes.1.applied";
@@ -131,20 +171,77 @@ public class ImageCache extends SQLiteOpenHelper
 
 
   /***************************************************************************
-   * Fetcher thread
+   * Identifies an image in the index.
    **/
-  private class Fetcher extends Thread
+  private static class IndexKey
+  {
+    public String mCacheKey;
+    public int    mDimensions;
+
+    public IndexKey(String cacheKey, int dimensions)
+    {
+      mCacheKey = cacheKey;
+      mDimensions = dimensions;
+    }
+
+
+
+    @Override
+    public boolean equals(Object other)
+    {
+      if (!(other instanceof IndexKey)) {
+        return false;
+      }
+      IndexKey o = (IndexKey) other;
+      return mDimensions == o.mDimensions && mCacheKey.equals(o.mCacheKey);
+    }
+
+
+
+    @Override
+    public int hashCode()
+    {
+      return mCacheKey.hashCode() * 31 + mDimensions;
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Writes access times to the index in the background. Accesses are
+   * collected, and written in a single transaction once enough of them have
+   * accumulated or some time has passed, so that get() never has to wait for
+   * the database.
+   **/
+  private class AtimeWriter extends Thread
   {
-    public boolean keepRunning = true;
+    public volatile boolean         mKeepRunning = true;
+
+    private Object                  mLock = new Object();
+    private HashMap<IndexKey, Long> mPending = new HashMap<IndexKey, Long>();
+
+
+    public AtimeWriter()
+    {
+      super("ImageCache.AtimeWriter");
+      setDaemon(true);
+      setPriority(Thread.MIN_PRIORITY);
+    }
+
 
-    private LinkedList<CacheItem> mItems;
-    private Handler               mHandler;
 
-    public Fetcher(LinkedList<CacheItem> items, Handler handler)
+    /**
+     * Records an access; cheap enough for the UI thread.
+     **/
+    public void record(String cacheKey, int dimensions)
     {
-      super();
-      mItems = items;
-      mHandler = handler;
+      synchronized (mLock)
+      {
+        mPending.put(new IndexKey(cacheKey, dimensions), System.currentTimeMillis());
+        if (mPending.size() >= ATIME_BATCH_SIZE) {
+          mLock.notify();
+        }
+      }
     }
 
 
@@ -152,32 +249,177 @@ public class ImageCache extends SQLiteOpenHelper
     @Override
     public void run()
     {
-      // Download items
-      while (keepRunning && 0 < mItems.size()) {
-        CacheItem item = mItems.remove();
-        // Look up in cache again. It's possible that the previous download
-        // fetched the same image
-        Bitmap b = get(item.getCacheKey(), item.mDimensions);
-        if (null != b) {
-          item.mBitmap = b;
-          mHandler.obtainMessage(MSG_OK, item).sendToTarget();
+      while (mKeepRunning) {
+        synchronized (mLock)
+        {
+          if (mPending.size() < ATIME_BATCH_SIZE) {
+            try {
+              mLock.wait(ATIME_FLUSH_INTERVAL);
+            } catch (InterruptedException ex) {
+              // Ignore
+            }
+          }
         }
-        else {
-          // Apparently it didn't, so fetch the item.
-          processItem(item, mHandler);
+        flush();
+      }
+    }
+
+
+
+    /**
+     * Writes all pending access times.
+     **/
+    public void flush()
+    {
+      HashMap<IndexKey, Long> pending;
+      synchronized (mLock)
+      {
+        if (0 == mPending.size()) {
+          return;
         }
+        pending = mPending;
+        mPending = new HashMap<IndexKey, Long>();
       }
 
-      // If we've been cancelled, then send appropriate messages.
-      while (!keepRunning && 0 < mItems.size()) {
-        CacheItem item = mItems.remove();
-        mHandler.obtainMessage(MSG_CANCELLED, item).sendToTarget();
+      SQLiteDatabase db = getWritableDatabase();
+      SQLiteStatement stmt = db.compileStatement("UPDATE " + CACHE_TABLE
+          + " SET " + ATIME + " = ? WHERE "
+          + _ID + " = ? AND " + DIMENSIONS + " = ?;");
+
+      db.beginTransaction();
+      try {
+        for (Map.Entry<IndexKey, Long> access : pending.entrySet()) {
+          stmt.bindLong(1, access.getValue());
+          stmt.bindString(2, access.getKey().mCacheKey);
+          stmt.bindLong(3, access.getKey().mDimensions);
+          stmt.execute();
+        }
+        db.setTransactionSuccessful();
+      } catch (SQLException ex) {
+        Log.e(LTAG, "Could not update access times: " + ex.getMessage());
+      } finally {
+        db.endTransaction();
+        stmt.close();
       }
+      // Log.d(LTAG, "Updated " + pending.size() + " access times.");
+    }
+  }
+
 
-      // Lastly, clear the cache of it's least recently used items. Note that
-      // this may well be interrupted again, and it can't be relied on that
-      // this gets to finish every time downloads end or are cancelled.
-      clearLRU();
+
+  /***************************************************************************
+   * A single image to fetch, for any number of callers.
+   **/
+  private static class FetchTask implements Comparable<FetchTask>
+  {
+    public IndexKey   mKey;
+    public CacheItem  mItem;
+    public LinkedList<Pair<CacheItem, Handler>> mWaiters = new LinkedList<Pair<CacheItem, Handler>>();
+
+    // Priority: tasks from the most recent fetch() call go first, and within
+    // a call, in the order they were passed.
+    public long       mGeneration;
+    public int        mPosition;
+
+    public boolean    mStarted = false;
+
+
+    public FetchTask(IndexKey key, CacheItem item)
+    {
+      mKey = key;
+      mItem = item;
+    }
+
+
+
+    public int compareTo(FetchTask other)
+    {
+      if (mGeneration != other.mGeneration) {
+        return (mGeneration > other.mGeneration) ? -1 : 1;
+      }
+      return mPosition - other.mPosition;
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Fetcher thread; takes the highest priority task from the queue.
+   **/
+  private class Fetcher extends Thread
+  {
+    public volatile boolean mKeepRunning = true;
+
+
+    public Fetcher(int number)
+    {
+      super("ImageCache.Fetcher-" + number);
+      setDaemon(true);
+      setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+
+
+    @Override
+    public void run()
+    {
+      while (mKeepRunning) {
+        FetchTask task;
+        synchronized (mQueueLock)
+        {
+          while (mQueue.isEmpty()) {
+            try {
+              mQueueLock.wait();
+            } catch (InterruptedException ex) {
+              // Ignore
+            }
+            if (!mKeepRunning) {
+              return;
+            }
+          }
+          task = mQueue.poll();
+          task.mStarted = true;
+        }
+
+        // Whatever goes wrong with a task must neither kill the thread nor
+        // leave the task behind; later fetches would wait for it forever.
+        Bitmap bitmap = null;
+        boolean idle = false;
+        try {
+          // Look up in cache again. It's possible that a previous download
+          // fetched the same image
+          bitmap = get(task.mKey.mCacheKey, task.mKey.mDimensions);
+          if (null == bitmap) {
+            // Apparently it didn't, so fetch the item.
+            bitmap = processItem(task.mItem);
+          }
+        } catch (RuntimeException ex) {
+          Log.e(LTAG, "Error processing " + task.mItem.mImageUri + ": " + ex);
+          bitmap = null;
+        } finally {
+          // Hand the result to everyone who asked for it.
+          synchronized (mQueueLock)
+          {
+            mTasks.remove(task.mKey);
+            idle = mTasks.isEmpty();
+          }
+          for (Pair<CacheItem, Handler> waiter : task.mWaiters) {
+            waiter.mFirst.mBitmap = bitmap;
+            waiter.mSecond.obtainMessage((null == bitmap) ? MSG_ERROR : MSG_OK,
+                waiter.mFirst).sendToTarget();
+          }
+        }
+
+        // Lastly, clear the cache of it's least recently used items, once
+        // there's nothing left to do.
+        if (idle) {
+          try {
+            clearLRU();
+          } catch (RuntimeException ex) {
+            Log.e(LTAG, "Error clearing cache: " + ex);
+          }
+        }
+      }
     }
   }
 
@@ -192,8 +434,39 @@ public class ImageCache extends SQLiteOpenHelper
   // Number of items.
   private int         mCacheMax;
 
-  // Current fetcher thread
-  private Fetcher     mFetcher;
+  // Image files
+  private File        mDir;
+
+  // Fetcher threads, and the tasks they're working on or have yet to start.
+  // Both the queue and the tasks are guarded by mQueueLock.
+  private Fetcher[]                     mFetchers;
+  private Object                        mQueueLock = new Object();
+  private PriorityQueue<FetchTask>      mQueue = new PriorityQueue<FetchTask>();
+  private HashMap<IndexKey, FetchTask>  mTasks = new HashMap<IndexKey, FetchTask>();
+  private long                          mGeneration = 0;
+
+  // Receives API errors for image downloads.
+  private Handler                       mErrorHandler;
+
+  // Decoded images, in front of the database.
+  private BitmapMemoryCache mMemoryCache = new BitmapMemoryCache();
+
+  // Bitmaps to decode or scale images into; temporary ones, and thumbnails
+  // evicted from mMemoryCache.
+  private BitmapPool  mBitmapPool = new BitmapPool();
+
+  // Batches access time updates.
+  private AtimeWriter mAtimeWriter;
+
+  // Storage options
+  private volatile boolean              mStoreOriginals = true;
+  private volatile Bitmap.CompressFormat mScaledFormat = DEFAULT_SCALED_FORMAT;
+  private volatile int                  mScaledQuality = DEFAULT_SCALED_QUALITY;
+
+  // Statistics for processed images
+  private long        mImagesProcessed = 0;
+  private long        mCpuTimeNanos = 0;
+  private long        mBytesStored = 0;
 
 
   /***************************************************************************
@@ -205,6 +478,48 @@ public class ImageCache extends SQLiteOpenHelper
 
     mContext = new WeakReference<Context>(context);
     mCacheMax = cacheMax;
+
+    // Images used to be stored in the database itself; that data is of no
+    // further use.
+    if (context.getDatabasePath(OLD_DATABASE_NAME).exists()) {
+      Log.i(LTAG, "Deleting old image database '" + OLD_DATABASE_NAME + "'.");
+      context.deleteDatabase(OLD_DATABASE_NAME);
+    }
+
+    // Remove files left over from interrupted writes.
+    mDir = context.getDir(IMAGE_DIR, Context.MODE_PRIVATE);
+    File[] files = mDir.listFiles();
+    if (null != files) {
+      for (File f : files) {
+        if (f.getName().endsWith(TEMP_SUFFIX)) {
+          f.delete();
+        }
+      }
+    }
+
+    mMemoryCache.setEvictionListener(new BitmapMemoryCache.EvictionListener() {
+      public void onEvicted(Bitmap bitmap)
+      {
+        mBitmapPool.offer(bitmap);
+      }
+    });
+
+    mAtimeWriter = new AtimeWriter();
+    mAtimeWriter.start();
+
+    mErrorHandler = new Handler(new Handler.Callback() {
+      public boolean handleMessage(Message msg)
+      {
+        Log.e(LTAG, "Error fetching image: " + msg.what + " - " + msg.obj);
+        return true;
+      }
+    });
+
+    mFetchers = new Fetcher[FETCHER_THREADS];
+    for (int i = 0 ; i < FETCHER_THREADS ; ++i) {
+      mFetchers[i] = new Fetcher(i);
+      mFetchers[i].start();
+    }
   }
 
 
@@ -217,10 +532,11 @@ public class ImageCache extends SQLiteOpenHelper
     db.beginTransaction();
 
     db.execSQL("CREATE TABLE IF NOT EXISTS " + CACHE_TABLE + " ("
-          + _ID             + " TEXT PRIMARY KEY, "
+          + _ID             + " TEXT NOT NULL, "
           + DIMENSIONS      + " INTEGER NOT NULL, "
           + ATIME           + " INTEGER NOT NULL, "
-          + DATA            + " BLOB NOT NULL"
+          + SIZE            + " INTEGER NOT NULL, "
+          + "PRIMARY KEY (" + _ID + ", " + DIMENSIONS + ")"
         + ");");
 
     db.setTransactionSuccessful();
@@ -245,6 +561,7 @@ public class ImageCache extends SQLiteOpenHelper
     boolean applied = prefs.getBoolean(PREFS_KEY_FIX1_APPLIED, false);
     if (!applied) {
       db.execSQL("DELETE FROM " + CACHE_TABLE + ";");
+      deleteFiles(null);
 
       SharedPreferences.Editor edit = prefs.edit();
       edit.putBoolean(PREFS_KEY_FIX1_APPLIED, true);
@@ -287,6 +604,9 @@ public class ImageCache extends SQLiteOpenHelper
    * The second parameter specifies the dimensions (width AND height) of the
    * image. If the image is available at different sizes, that's not taken into
    * account, the function still returns null.
+   *
+   * Recently used images are served from memory; only on a miss is the
+   * database queried and the image decoded.
    **/
   public Bitmap get(Uri uri, int dimensions)
   {
@@ -295,71 +615,64 @@ public class ImageCache extends SQLiteOpenHelper
 
   public Bitmap get(String cacheKey, int dimensions)
   {
-    SQLiteDatabase db = getReadableDatabase();
-
-    // Query the cache.
-    SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-    qb.setTables(CACHE_TABLE);
-
-    Cursor c = qb.query(db,
-        new String[] { DATA },
-        _ID + " = ? "
-          + "AND " + DIMENSIONS + " = ?",
-        new String[] {
-          cacheKey,
-          String.valueOf(dimensions)
-        },
-        null, null, null);
+    Bitmap cached = mMemoryCache.get(cacheKey, dimensions);
+    if (null != cached) {
+      mAtimeWriter.record(cacheKey, dimensions);
+      return cached;
+    }
 
-    if (null == c) {
+    // The index is not consulted; if the file exists, it's been committed.
+    File file = fileFor(cacheKey, dimensions);
+    if (!file.exists()) {
       return null;
     }
-    if (0 == c.getCount()) {
-      c.close();
-      return null;
+
+    // Decode straight from the file. If it's been removed in the meantime,
+    // that's a cache miss like any other.
+    Bitmap bitmap = decodeFile(file);
+    if (null != bitmap) {
+      mMemoryCache.put(cacheKey, dimensions, bitmap);
+
+      // Updating the atime inline degrades scroll performance noticeably, so
+      // it's left to the AtimeWriter.
+      mAtimeWriter.record(cacheKey, dimensions);
     }
+    return bitmap;
+  }
 
 
-    // Read raw data from the database
-    c.moveToFirst();
-    byte[] data = c.getBlob(c.getColumnIndex(DATA));
-    c.close();
 
-    if (null == data) {
+  /**
+   * Decodes a thumbnail file. Where Bitmaps can be reused, it's decoded into
+   * a pooled one of the same size if possible, and decoded as mutable either
+   * way, so that it can go back to the pool once it's evicted from memory.
+   **/
+  private Bitmap decodeFile(File file)
+  {
+    BitmapFactory.Options opts = BitmapPool.createOptions();
+    if (!BitmapPool.isReuseSupported()) {
+      return BitmapFactory.decodeFile(file.getPath(), opts);
+    }
+
+    opts.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), opts);
+    if (opts.outWidth <= 0 || opts.outHeight <= 0) {
       return null;
     }
+    opts.inJustDecodeBounds = false;
+    opts.inSampleSize = 1;
 
-    // XXX So we don't update the atime. Doing so inline (i.e. in the main UI
-    // thread) does actually degrade scroll performance by quite a bit. That
-    // effectively turns the LRU mechanic into a least recently downloaded
-    // mechanic.
-    // The upshot is that images that are displayed a lot *will* be cleared
-    // from the cache and downloaded again from time to time.
-    // There are three choices:
-    // a) Live with the slight stuttering, and use the code commented out below.
-    // b) Live with the re-downloading, and leave things as they are.
-    //    The effects of this can be alleviated by choosing a relatively large
-    //    cache size. Currently, the cache size is at 200 items, when the
-    //    recent boos list only contains 25 items. Assuming no other images
-    //    are downloaded and cached, 50 items would be enough to avoid
-    //    deletion and re-downloading of images displayed in the list. That
-    //    should be good enough, and is the current state of the code.
-    // c) Implement more complex code for updating ATIME in a background thread.
-
-//    // Update atime.
-//    ContentValues values = new ContentValues();
-//    values.put(ATIME, System.currentTimeMillis());
-//    db.update(CACHE_TABLE, values,
-//        _ID + " = ?"
-//          + "AND " + DIMENSIONS + " = ?",
-//        new String[] {
-//          imageUrl.toString(),
-//          String.valueOf(dimensions),
-//        });
-
-    // Convert the data to a Bitmap instance, and return
-    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-    return bitmap;
+    boolean reuse = mBitmapPool.prepareReuse(opts);
+    try {
+      return BitmapFactory.decodeFile(file.getPath(), opts);
+    } catch (IllegalArgumentException ex) {
+      if (!reuse) {
+        throw ex;
+      }
+      // The pooled Bitmap didn't fit.
+      BitmapPool.clearReuse(opts);
+      return BitmapFactory.decodeFile(file.getPath(), opts);
+    }
   }
 
 
@@ -370,23 +683,48 @@ public class ImageCache extends SQLiteOpenHelper
    * dimensions, and also place the scaled version into the cache.
    * It's more efficient to specify a list of images rather than each individual
    * one here. The result handler is called for each individual result.
+   *
+   * Images are fetched in parallel, in the order given; images requested by
+   * later calls are fetched before those requested by earlier ones. An image
+   * that is already being fetched for another caller is not fetched twice.
    **/
   public void fetch(LinkedList<CacheItem> uris, Handler resultHandler)
   {
-    if (null != mFetcher) {
-      cancelFetching();
-    }
+    synchronized (mQueueLock)
+    {
+      long generation = ++mGeneration;
+      int position = 0;
+      for (CacheItem item : uris) {
+        IndexKey key = new IndexKey(item.getCacheKey(), item.mDimensions);
+        FetchTask task = mTasks.get(key);
+        if (null == task) {
+          task = new FetchTask(key, item);
+          mTasks.put(key, task);
+        }
+        else if (!task.mStarted) {
+          // Re-inserted below with its new priority.
+          mQueue.remove(task);
+        }
 
-    mFetcher = new Fetcher(uris, resultHandler);
-    mFetcher.start();
+        task.mWaiters.add(new Pair<CacheItem, Handler>(item, resultHandler));
+        if (!task.mStarted) {
+          task.mGeneration = generation;
+          task.mPosition = position;
+          mQueue.add(task);
+        }
+        ++position;
+      }
+      mQueueLock.notifyAll();
+    }
   }
 
 
 
   /**
-   * Fetch item either via API or filesystem
+   * Fetch item either via API or filesystem, and process it. Returns the
+   * resulting Bitmap, or null on errors.
    **/
-  private void processItem(CacheItem item, Handler resultHandler)
+  private Bitmap processItem(CacheItem item)
   {
     byte[] data = null;
 
@@ -395,7 +733,7 @@ public class ImageCache extends SQLiteOpenHelper
       File f = new File(item.mImageUri.getPath());
       if (!f.exists() || !f.canRead()) {
         Log.e(LTAG, "File specified by URI '" + item.mImageUri + "' does not exist or is not readable.");
-        return;
+        return null;
       }
 
       try {
@@ -406,142 +744,433 @@ public class ImageCache extends SQLiteOpenHelper
       }
     }
     else {
-      // Delegate to API
-      data = Globals.get().mAPI.fetchRawSynchronous(item.mImageUri, resultHandler);
+      // Delegate to API. Errors are reported to the result handlers as
+      // MSG_ERROR, so API errors are only logged.
+      data = Globals.get().mAPI.fetchRawSynchronous(item.mImageUri, mErrorHandler);
     }
 
     // Process results
-    if (null != data) {
-      processItemResult(item, resultHandler, data);
+    if (null == data) {
+      return null;
     }
+    return processItemResult(item, data);
   }
 
 
 
   /**
    * Process an item's result, writing it into cache and scaling it, etc.
+   * Returns the Bitmap to display, or null on errors.
    **/
-  private void processItemResult(CacheItem item, Handler resultHandler, byte[] data)
+  private Bitmap processItemResult(CacheItem item, byte[] data)
   {
     // Log.d(LTAG, "Got: " + item.mImageUri);
     boolean isLocal = "file".equals(item.mImageUri.getScheme());
-
-    // Great. First, create a Bitmap from the raw data. We'll need that to
-    // determine the file's dimensions, both for storing in the DB and for
-    // figuring out whether we need to scale it.
-    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-    if (null == bitmap) {
+    long startTime = Debug.threadCpuTimeNanos();
+    long stored = 0;
+
+    // Great. First, determine the image's dimensions from the raw data, both
+    // for storing in the DB and for figuring out whether we need to scale it.
+    BitmapFactory.Options opts = BitmapPool.createOptions();
+    opts.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+    if (opts.outWidth <= 0 || opts.outHeight <= 0) {
       Log.e(LTAG, "Image response was corrupt: " + item.mImageUri);
-      resultHandler.obtainMessage(MSG_ERROR, item).sendToTarget();
-      return;
+      return null;
     }
 
-    // Store raw image.
-    int dimensions = Math.max(bitmap.getWidth(), bitmap.getHeight());
-    if (!isLocal) {
-      storeImage(item.getCacheKey(), bitmap, dimensions);
+    // Store the image as received; there's no point in re-encoding it.
+    int dimensions = Math.max(opts.outWidth, opts.outHeight);
+    if (!isLocal && mStoreOriginals) {
+      stored += storeData(item.getCacheKey(), data, dimensions);
+    }
+
+    // When scaling down, let the decoder skip as many pixels as possible, so
+    // that only a small Bitmap needs to be scaled to the exact size.
+    opts.inJustDecodeBounds = false;
+    opts.inSampleSize = 1;
+    while (dimensions / (opts.inSampleSize * 2) >= item.mDimensions) {
+      opts.inSampleSize *= 2;
+    }
+
+    // Decode into a pooled Bitmap if there is one. Either way, the result is
+    // mutable where that's supported, so it can go back to the pool once it's
+    // been scaled, or evicted from memory.
+    boolean reuse = mBitmapPool.prepareReuse(opts);
+
+    Bitmap bitmap = null;
+    try {
+      try {
+        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+      } catch (IllegalArgumentException ex) {
+        if (!reuse) {
+          throw ex;
+        }
+        // The pooled Bitmap didn't fit.
+        BitmapPool.clearReuse(opts);
+        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+      }
+    } catch (OutOfMemoryError ex) {
+      Log.e(LTAG, "Out of memory, can't decode bitmap: " + item.mImageUri);
+    }
+    if (null == bitmap) {
+      Log.e(LTAG, "Unable to decode bitmap: " + item.mImageUri);
+      return null;
     }
 
     // If the dimensions are other than the requested one, scale the image
     // up/down.
     Bitmap scaled_bitmap = bitmap;
-    if (dimensions != item.mDimensions) {
-      float factor = ((float) item.mDimensions) / dimensions;
+    int decoded = Math.max(bitmap.getWidth(), bitmap.getHeight());
+    if (decoded != item.mDimensions) {
+      float factor = ((float) item.mDimensions) / decoded;
 
       int new_width = (int) (bitmap.getWidth() * factor);
       int new_height = (int) (bitmap.getHeight() * factor);
       try {
-        scaled_bitmap = Bitmap.createScaledBitmap(bitmap, new_width, new_height, true);
-        bitmap.recycle();
+        // Thumbnails evicted from memory mostly have the size we need; draw
+        // into one of those rather than allocating a new Bitmap.
+        Bitmap target = mBitmapPool.obtain(new_width, new_height, bitmap.getConfig());
+        if (null != target) {
+          target.eraseColor(0);
+          new Canvas(target).drawBitmap(bitmap, null,
+              new Rect(0, 0, new_width, new_height),
+              new Paint(Paint.FILTER_BITMAP_FLAG));
+          scaled_bitmap = target;
+        }
+        else {
+          scaled_bitmap = Bitmap.createScaledBitmap(bitmap, new_width, new_height, true);
+        }
+        if (scaled_bitmap != bitmap) {
+          mBitmapPool.release(bitmap);
+        }
 
         if (null == scaled_bitmap) {
           Log.e(LTAG, "Unable to scale bitmap: " + item.mImageUri);
-          resultHandler.obtainMessage(MSG_ERROR, item).sendToTarget();
-          return;
+          return null;
         }
       } catch (OutOfMemoryError ex) {
-        bitmap.recycle();
+        mBitmapPool.release(bitmap);
         Log.e(LTAG, "Out of memory, can't scale bitmap: " + item.mImageUri);
-        resultHandler.obtainMessage(MSG_ERROR, item).sendToTarget();
-        return;
+        return null;
       } catch (IllegalArgumentException ex) {
-        bitmap.recycle();
+        mBitmapPool.release(bitmap);
         Log.e(LTAG, "Illegal argument: " + item.mImageUri + " @ " + new_width + "x" + new_height);
-        resultHandler.obtainMessage(MSG_ERROR, item).sendToTarget();
-        return;
+        return null;
       }
+    }
 
-      // Store scaled image with the target dimensions
-      if (!isLocal) {
-        storeImage(item.getCacheKey(), scaled_bitmap, item.mDimensions);
-      }
+    // Store scaled image with the target dimensions, unless it's the
+    // original image, which we already have.
+    if (!isLocal && (dimensions != item.mDimensions || !mStoreOriginals)) {
+      stored += storeImage(item.getCacheKey(), scaled_bitmap, item.mDimensions);
     }
 
-    // We can send the scaled image on to the caller now.
-    item.mBitmap = scaled_bitmap;
-    resultHandler.obtainMessage(MSG_OK, item).sendToTarget();
+    long cpuTime = Debug.threadCpuTimeNanos() - startTime;
+    synchronized (this)
+    {
+      ++mImagesProcessed;
+      mCpuTimeNanos += cpuTime;
+      mBytesStored += stored;
+    }
+    // Log.d(LTAG, "Processed " + item.mImageUri + " in " + (cpuTime / 1000) + "usec, stored " + stored + " bytes.");
+
+    // The scaled image is what the caller gets; keep it in memory for the
+    // next time it's displayed.
+    if (!isLocal) {
+      mMemoryCache.put(item.getCacheKey(), item.mDimensions, scaled_bitmap);
+    }
+    return scaled_bitmap;
+  }
+
+
+
+  /**
+   * If set (the default), images are stored in the cache as they were
+   * received, in addition to scaled versions. Otherwise only the scaled
+   * versions are stored.
+   **/
+  public void setStoreOriginals(boolean storeOriginals)
+  {
+    mStoreOriginals = storeOriginals;
+  }
+
+
+
+  /**
+   * Sets the format and quality in which scaled images are stored. Images with
+   * an alpha channel are stored as PNG regardless.
+   **/
+  public void setScaledFormat(Bitmap.CompressFormat format, int quality)
+  {
+    mScaledFormat = format;
+    mScaledQuality = quality;
+  }
+
+
+
+  /**
+   * Returns the CPU time spent on processing an image, on average, in
+   * microseconds.
+   **/
+  public synchronized long getAverageCpuTime()
+  {
+    return (0 == mImagesProcessed) ? 0 : mCpuTimeNanos / mImagesProcessed / 1000;
+  }
+
+
+
+  /**
+   * Returns the number of bytes stored on disk per image processed, on
+   * average.
+   **/
+  public synchronized long getAverageBytesStored()
+  {
+    return (0 == mImagesProcessed) ? 0 : mBytesStored / mImagesProcessed;
   }
 
 
 
   /**
-   * Cancels all downloads currently in progress. Handlers waiting for results
-   * will receive a MSG_CANCELLED message.
+   * Cancels all downloads that have not started yet. Handlers waiting for
+   * them will receive a MSG_CANCELLED message.
+   * Downloads already in progress are not aborted; their results are still
+   * cached, and delivered to handlers waiting for them. Passing the same image
+   * to fetch() again picks up the download in progress.
    **/
   public void cancelFetching()
   {
-    if (null == mFetcher) {
-      return;
+    synchronized (mQueueLock)
+    {
+      for (FetchTask task : mQueue) {
+        mTasks.remove(task.mKey);
+        for (Pair<CacheItem, Handler> waiter : task.mWaiters) {
+          waiter.mSecond.obtainMessage(MSG_CANCELLED, waiter.mFirst).sendToTarget();
+        }
+      }
+      mQueue.clear();
     }
+  }
 
-    mFetcher.keepRunning = false;
-    mFetcher.interrupt();
-    mFetcher = null;
+
+
+  /**
+   * Stops the fetcher threads and writes pending access times; afterwards,
+   * the cache must not be used any longer. Fetches that haven't started are
+   * cancelled, and those in progress are finished first.
+   **/
+  public void release()
+  {
+    cancelFetching();
+
+    synchronized (mQueueLock)
+    {
+      for (Fetcher fetcher : mFetchers) {
+        fetcher.mKeepRunning = false;
+      }
+      mQueueLock.notifyAll();
+    }
+
+    mAtimeWriter.mKeepRunning = false;
+    mAtimeWriter.interrupt();
+    mAtimeWriter.flush();
   }
 
 
 
   /**
-   * Stores a bitmap's data in the cache database.
+   * Drops all decoded images held in memory; the database is unaffected.
    **/
-  private void storeImage(String cacheKey, Bitmap bitmap, int dimensions)
+  public void clearMemory()
   {
-    // First, we have to convert the Bitmap into a byte representation, for
-    // which it'll need to be compressed.
-    byte[] data = null;
+    Log.i(LTAG, "Clearing memory cache: " + mMemoryCache + " " + mBitmapPool);
+    mMemoryCache.clear();
+    mBitmapPool.clear();
+  }
+
+
+
+  /**
+   * Stores encoded image data in the cache. Returns the number of bytes
+   * stored.
+   **/
+  private long storeData(String cacheKey, byte[] data, int dimensions)
+  {
+    File file = fileFor(cacheKey, dimensions);
+    File temp = tempFileFor(file);
+
+    boolean success = false;
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream(temp);
+      os.write(data);
+      success = true;
+    } catch (IOException ex) {
+      Log.e(LTAG, "Could not write image file for '" + cacheKey + "': " + ex.getMessage());
+    } finally {
+      if (null != os) {
+        try {
+          os.close();
+        } catch (IOException ex) {
+          success = false;
+        }
+      }
+    }
+
+    return commitFile(cacheKey, dimensions, temp, file, success);
+  }
+
+
+
+  /**
+   * Stores a bitmap's data in the cache, compressed in the format configured
+   * for scaled images. Returns the number of bytes stored.
+   **/
+  private long storeImage(String cacheKey, Bitmap bitmap, int dimensions)
+  {
+    File file = fileFor(cacheKey, dimensions);
+    File temp = tempFileFor(file);
+
+    Bitmap.CompressFormat format = mScaledFormat;
+    int quality = mScaledQuality;
+    if (bitmap.hasAlpha()) {
+      format = Bitmap.CompressFormat.PNG;
+      quality = 100;
+    }
+
+    // Compress the Bitmap straight to disk.
+    boolean success = false;
+    OutputStream os = null;
     try {
-      ByteArrayOutputStream os = new ByteArrayOutputStream(COMPRESS_CHUNK_SIZE);
-      bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
-      data = os.toByteArray();
+      os = new BufferedOutputStream(new FileOutputStream(temp), WRITE_BUFFER_SIZE);
+      success = bitmap.compress(format, quality, os);
+    } catch (IOException ex) {
+      Log.e(LTAG, "Could not write image file for '" + cacheKey + "': " + ex.getMessage());
     } catch (OutOfMemoryError ex) {
       Log.e(LTAG, "Out of memory, cannot store bitmap: " + cacheKey);
-      return;
+    } finally {
+      if (null != os) {
+        try {
+          os.close();
+        } catch (IOException ex) {
+          success = false;
+        }
+      }
     }
 
-    // Now store it in the database.
-    ContentValues values = new ContentValues();
-    values.put(_ID, cacheKey);
-    values.put(DIMENSIONS, dimensions);
-    values.put(ATIME, System.currentTimeMillis());
-    values.put(DATA, data);
+    return commitFile(cacheKey, dimensions, temp, file, success);
+  }
+
+
+
+  /**
+   * Files are written under a temporary name and renamed into place, so
+   * readers never see a partial image; they're then added to the index.
+   * Returns the size of the committed file, or 0 if the write failed.
+   *
+   * Renaming and indexing happen under clearLRU()'s lock; otherwise it could
+   * find the file in place but not in the index, and delete it.
+   **/
+  private long commitFile(String cacheKey, int dimensions, File temp, File file,
+      boolean success)
+  {
+    if (!success) {
+      temp.delete();
+      return 0;
+    }
+
+    synchronized (this)
+    {
+      if (!temp.renameTo(file)) {
+        temp.delete();
+        return 0;
+      }
 
-    // Write into db
-    SQLiteDatabase db = getWritableDatabase();
+      long size = file.length();
+
+      // Now add it to the index.
+      ContentValues values = new ContentValues();
+      values.put(_ID, cacheKey);
+      values.put(DIMENSIONS, dimensions);
+      values.put(ATIME, System.currentTimeMillis());
+      values.put(SIZE, size);
+
+      SQLiteDatabase db = getWritableDatabase();
+      db.replace(CACHE_TABLE, null, values);
+
+      return size;
+    }
+  }
+
+
+
+  /**
+   * Returns the file an image is stored in.
+   **/
+  private File fileFor(String cacheKey, int dimensions)
+  {
+    return new File(mDir, fileNameFor(cacheKey, dimensions));
+  }
+
+
+
+  private static File tempFileFor(File file)
+  {
+    return new File(file.getPath() + "." + Thread.currentThread().getId()
+        + TEMP_SUFFIX);
+  }
+
+
+
+  private static String fileNameFor(String cacheKey, int dimensions)
+  {
     try {
-      db.insertOrThrow(CACHE_TABLE, _ID, values);
-    } catch (SQLiteConstraintException ex) {
-      db.update(CACHE_TABLE, values, _ID + " = ?",
-          new String[] { values.getAsString(_ID) });
+      MessageDigest m = MessageDigest.getInstance("SHA-1");
+      String key = cacheKey + "@" + dimensions;
+      return new BigInteger(1, m.digest(key.getBytes("UTF-8"))).toString(16);
+    } catch (java.security.NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex.getMessage());
+    } catch (java.io.UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex.getMessage());
+    }
+  }
+
+
+
+  /**
+   * Deletes image files, except those named in keep. Pass null to delete all
+   * of them.
+   **/
+  private void deleteFiles(HashSet<String> keep)
+  {
+    File[] files = mDir.listFiles();
+    if (null == files) {
+      return;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(TEMP_SUFFIX)) {
+        continue;
+      }
+      if (null == keep || !keep.contains(name)) {
+        f.delete();
+      }
     }
   }
 
 
 
   /**
-   * Clears the database of it's least recently used items.
+   * Clears the cache of it's least recently used items. Files that are not
+   * in the index, e.g. because the process died between writing and indexing
+   * them, are removed at the same time.
+   * Synchronized, as any of the fetcher threads may end up calling it.
    **/
-  private void clearLRU()
+  private synchronized void clearLRU()
   {
+    // Make sure recent accesses are taken into account.
+    mAtimeWriter.flush();
+
     SQLiteDatabase db = getReadableDatabase();
 
     // We'll try and keep the LRU logic simple: first determine the number of
@@ -586,10 +1215,20 @@ public class ImageCache extends SQLiteOpenHelper
           id,
           String.valueOf(dimensions),
       });
+      fileFor(id, dimensions).delete();
+    }
+
+    // The remaining items are the ones to keep.
+    HashSet<String> keep = new HashSet<String>();
+    for ( ; !c.isAfterLast() ; c.moveToNext()) {
+      keep.add(fileNameFor(c.getString(c.getColumnIndex(_ID)),
+            c.getInt(c.getColumnIndex(DIMENSIONS))));
     }
     c.close();
 
     db.setTransactionSuccessful();
     db.endTransaction();
+
+    deleteFiles(keep);
   }
 }
@@ -0,0 +1,691 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal pull parser for JSON, reading tokens straight from a stream. The
+ * interface follows android.util.JsonReader, which is not available on the
+ * API levels we support.
+ *
+ * Values must be consumed in document order; nested values that aren't of
+ * interest can be skipped with skipValue().
+ **/
+class JSONStreamReader
+{
+  /***************************************************************************
+   * Thrown when the input is not well-formed JSON, as opposed to other
+   * IOExceptions raised by the underlying stream.
+   **/
+  public static class MalformedJSONException extends IOException
+  {
+    public MalformedJSONException(String message)
+    {
+      super(message);
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Public constants
+   **/
+  // Token types, as returned by peek()
+  public static final int BEGIN_OBJECT    = 0;
+  public static final int END_OBJECT      = 1;
+  public static final int BEGIN_ARRAY     = 2;
+  public static final int END_ARRAY       = 3;
+  public static final int NAME            = 4;
+  public static final int STRING          = 5;
+  public static final int NUMBER          = 6;
+  public static final int BOOLEAN         = 7;
+  public static final int NULL            = 8;
+  public static final int END_DOCUMENT    = 9;
+
+
+  /***************************************************************************
+   * Private constants
+   **/
+  // Size of the character buffer.
+  private static final int  BUFFER_SIZE   = 8192;
+
+  // Maximum nesting depth.
+  private static final int  MAX_DEPTH     = 64;
+
+  // Scopes on the stack
+  private static final int  SCOPE_DOCUMENT      = 0;
+  private static final int  SCOPE_EMPTY_OBJECT  = 1;
+  private static final int  SCOPE_OBJECT        = 2; // Expecting ',' or '}'
+  private static final int  SCOPE_DANGLING_NAME = 3; // Expecting ':' and value
+  private static final int  SCOPE_EMPTY_ARRAY   = 4;
+  private static final int  SCOPE_ARRAY         = 5; // Expecting ',' or ']'
+  private static final int  SCOPE_DONE          = 6;
+
+  // Marker for "no token peeked yet"
+  private static final int  NONE          = -1;
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private Reader        mReader;
+
+  private char[]        mBuffer = new char[BUFFER_SIZE];
+  private int           mPos = 0;
+  private int           mLimit = 0;
+
+  private int[]         mStack = new int[MAX_DEPTH];
+  private int           mDepth = 0;
+
+  // Current token, and for NAME, STRING and NUMBER its text.
+  private int           mPeeked = NONE;
+  private String        mValue;
+  private boolean       mBoolValue;
+
+  // Reused for assembling string and number values.
+  private StringBuilder mScratch = new StringBuilder();
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public JSONStreamReader(InputStream is) throws IOException
+  {
+    this(new InputStreamReader(is, "UTF-8"));
+  }
+
+
+
+  public JSONStreamReader(Reader reader)
+  {
+    mReader = reader;
+    mStack[mDepth++] = SCOPE_DOCUMENT;
+  }
+
+
+
+  public void close() throws IOException
+  {
+    mReader.close();
+  }
+
+
+
+  public void beginObject() throws IOException
+  {
+    expect(BEGIN_OBJECT);
+    push(SCOPE_EMPTY_OBJECT);
+  }
+
+
+
+  public void endObject() throws IOException
+  {
+    expect(END_OBJECT);
+    --mDepth;
+  }
+
+
+
+  public void beginArray() throws IOException
+  {
+    expect(BEGIN_ARRAY);
+    push(SCOPE_EMPTY_ARRAY);
+  }
+
+
+
+  public void endArray() throws IOException
+  {
+    expect(END_ARRAY);
+    --mDepth;
+  }
+
+
+
+  /**
+   * Returns true if the current object or array has more elements.
+   **/
+  public boolean hasNext() throws IOException
+  {
+    int token = peek();
+    return END_OBJECT != token && END_ARRAY != token && END_DOCUMENT != token;
+  }
+
+
+
+  public String nextName() throws IOException
+  {
+    expect(NAME);
+    return mValue;
+  }
+
+
+
+  /**
+   * Returns the next string value. Numbers and booleans are returned in their
+   * textual representation.
+   **/
+  public String nextString() throws IOException
+  {
+    int token = peek();
+    if (BOOLEAN == token) {
+      mPeeked = NONE;
+      return String.valueOf(mBoolValue);
+    }
+    if (STRING != token && NUMBER != token) {
+      throw syntaxError("Expected string, got token " + token);
+    }
+    mPeeked = NONE;
+    return mValue;
+  }
+
+
+
+  /**
+   * Returns the next string value, or null if the next value is null.
+   **/
+  public String nextStringOrNull() throws IOException
+  {
+    if (NULL == peek()) {
+      nextNull();
+      return null;
+    }
+    return nextString();
+  }
+
+
+
+  public boolean nextBoolean() throws IOException
+  {
+    expect(BOOLEAN);
+    return mBoolValue;
+  }
+
+
+
+  public void nextNull() throws IOException
+  {
+    expect(NULL);
+  }
+
+
+
+  public double nextDouble() throws IOException
+  {
+    String value = nextNumber();
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException ex) {
+      throw syntaxError("Expected double, got '" + value + "'");
+    }
+  }
+
+
+
+  public int nextInt() throws IOException
+  {
+    String value = nextNumber();
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException ex) {
+      // Might be given as a floating point number.
+      try {
+        double d = Double.parseDouble(value);
+        if (d != (int) d) {
+          throw syntaxError("Expected int, got '" + value + "'");
+        }
+        return (int) d;
+      } catch (NumberFormatException ex2) {
+        throw syntaxError("Expected int, got '" + value + "'");
+      }
+    }
+  }
+
+
+
+  /**
+   * Reads the next object, including any nested values, into a JSONObject.
+   * Numbers become Integer, Long or Double values, which JSONObject's getters
+   * convert like they do for parsed documents.
+   **/
+  public JSONObject nextJSONObject() throws IOException
+  {
+    JSONObject result = new JSONObject();
+    beginObject();
+    try {
+      while (hasNext()) {
+        String name = nextName();
+        result.put(name, nextJSONValue());
+      }
+    } catch (JSONException ex) {
+      throw syntaxError(ex.getMessage());
+    }
+    endObject();
+    return result;
+  }
+
+
+
+  /**
+   * Reads the next array, including any nested values, into a JSONArray.
+   **/
+  public JSONArray nextJSONArray() throws IOException
+  {
+    JSONArray result = new JSONArray();
+    beginArray();
+    while (hasNext()) {
+      result.put(nextJSONValue());
+    }
+    endArray();
+    return result;
+  }
+
+
+
+  /**
+   * Skips the next value, including any nested objects or arrays.
+   **/
+  public void skipValue() throws IOException
+  {
+    int depth = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_OBJECT:
+          beginObject();
+          ++depth;
+          break;
+
+        case BEGIN_ARRAY:
+          beginArray();
+          ++depth;
+          break;
+
+        case END_OBJECT:
+          endObject();
+          --depth;
+          break;
+
+        case END_ARRAY:
+          endArray();
+          --depth;
+          break;
+
+        case END_DOCUMENT:
+          throw syntaxError("Unexpected end of document");
+
+        default:
+          // Names, strings, numbers, booleans and null
+          mPeeked = NONE;
+          break;
+      }
+    } while (0 != depth);
+  }
+
+
+
+  private Object nextJSONValue() throws IOException
+  {
+    switch (peek()) {
+      case BEGIN_OBJECT:
+        return nextJSONObject();
+
+      case BEGIN_ARRAY:
+        return nextJSONArray();
+
+      case STRING:
+        return nextString();
+
+      case BOOLEAN:
+        return Boolean.valueOf(nextBoolean());
+
+      case NULL:
+        nextNull();
+        return JSONObject.NULL;
+
+      case NUMBER:
+        String value = nextNumber();
+        try {
+          long l = Long.parseLong(value);
+          if (l == (int) l) {
+            return Integer.valueOf((int) l);
+          }
+          return Long.valueOf(l);
+        } catch (NumberFormatException ex) {
+          try {
+            return Double.valueOf(value);
+          } catch (NumberFormatException ex2) {
+            throw syntaxError("Invalid number '" + value + "'");
+          }
+        }
+
+      default:
+        throw syntaxError("Expected value, got token " + peek());
+    }
+  }
+
+
+
+  /**
+   * Returns the type of the next token without consuming it.
+   **/
+  public int peek() throws IOException
+  {
+    if (NONE != mPeeked) {
+      return mPeeked;
+    }
+
+    int scope = mStack[mDepth - 1];
+    int c = 0;
+    switch (scope) {
+      case SCOPE_EMPTY_ARRAY:
+        mStack[mDepth - 1] = SCOPE_ARRAY;
+        c = nextNonWhitespace();
+        if (']' == c) {
+          return mPeeked = END_ARRAY;
+        }
+        return mPeeked = readValue(c);
+
+      case SCOPE_ARRAY:
+        c = nextNonWhitespace();
+        if (']' == c) {
+          return mPeeked = END_ARRAY;
+        }
+        if (',' != c) {
+          throw syntaxError("Unterminated array");
+        }
+        return mPeeked = readValue(nextNonWhitespace());
+
+      case SCOPE_EMPTY_OBJECT:
+      case SCOPE_OBJECT:
+        c = nextNonWhitespace();
+        if ('}' == c) {
+          return mPeeked = END_OBJECT;
+        }
+        if (SCOPE_OBJECT == scope) {
+          if (',' != c) {
+            throw syntaxError("Unterminated object");
+          }
+          c = nextNonWhitespace();
+        }
+        if ('"' != c) {
+          throw syntaxError("Expected name");
+        }
+        mValue = readString();
+        mStack[mDepth - 1] = SCOPE_DANGLING_NAME;
+        return mPeeked = NAME;
+
+      case SCOPE_DANGLING_NAME:
+        if (':' != nextNonWhitespace()) {
+          throw syntaxError("Expected ':'");
+        }
+        mStack[mDepth - 1] = SCOPE_OBJECT;
+        return mPeeked = readValue(nextNonWhitespace());
+
+      case SCOPE_DOCUMENT:
+        mStack[mDepth - 1] = SCOPE_DONE;
+        return mPeeked = readValue(nextNonWhitespace());
+
+      case SCOPE_DONE:
+        if (-1 != nextNonWhitespace()) {
+          throw syntaxError("Trailing data after document");
+        }
+        return mPeeked = END_DOCUMENT;
+
+      default:
+        throw new IllegalStateException("Unknown scope: " + scope);
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Tokenizer helpers
+   **/
+  private void expect(int token) throws IOException
+  {
+    int actual = peek();
+    if (token != actual) {
+      throw syntaxError("Expected token " + token + ", got " + actual);
+    }
+    mPeeked = NONE;
+  }
+
+
+
+  private void push(int scope) throws IOException
+  {
+    if (mDepth >= MAX_DEPTH) {
+      throw syntaxError("Nesting too deep");
+    }
+    mStack[mDepth++] = scope;
+  }
+
+
+
+  private String nextNumber() throws IOException
+  {
+    expect(NUMBER);
+    return mValue;
+  }
+
+
+
+  /**
+   * Reads a value token starting with the given character.
+   **/
+  private int readValue(int c) throws IOException
+  {
+    switch (c) {
+      case '{':
+        return BEGIN_OBJECT;
+
+      case '[':
+        return BEGIN_ARRAY;
+
+      case '"':
+        mValue = readString();
+        return STRING;
+
+      case 't':
+        readLiteral("rue");
+        mBoolValue = true;
+        return BOOLEAN;
+
+      case 'f':
+        readLiteral("alse");
+        mBoolValue = false;
+        return BOOLEAN;
+
+      case 'n':
+        readLiteral("ull");
+        return NULL;
+
+      case -1:
+        throw syntaxError("Unexpected end of document");
+
+      default:
+        if ('-' == c || (c >= '0' && c <= '9')) {
+          mValue = readNumber((char) c);
+          return NUMBER;
+        }
+        throw syntaxError("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+
+
+  private void readLiteral(String rest) throws IOException
+  {
+    for (int i = 0 ; i < rest.length() ; ++i) {
+      if (rest.charAt(i) != read()) {
+        throw syntaxError("Invalid literal");
+      }
+    }
+  }
+
+
+
+  private String readNumber(char first) throws IOException
+  {
+    mScratch.setLength(0);
+    mScratch.append(first);
+    while (true) {
+      if (mPos >= mLimit && !fill()) {
+        break;
+      }
+      char c = mBuffer[mPos];
+      if ((c >= '0' && c <= '9') || '-' == c || '+' == c || '.' == c
+          || 'e' == c || 'E' == c)
+      {
+        mScratch.append(c);
+        ++mPos;
+      }
+      else {
+        break;
+      }
+    }
+    return mScratch.toString();
+  }
+
+
+
+  /**
+   * Reads a string; the opening quote has already been consumed.
+   **/
+  private String readString() throws IOException
+  {
+    mScratch.setLength(0);
+    while (true) {
+      // Copy runs of unescaped characters in one go.
+      int start = mPos;
+      while (mPos < mLimit) {
+        char c = mBuffer[mPos];
+        if ('"' == c) {
+          mScratch.append(mBuffer, start, mPos - start);
+          ++mPos;
+          return mScratch.toString();
+        }
+        if ('\\' == c) {
+          break;
+        }
+        ++mPos;
+      }
+      mScratch.append(mBuffer, start, mPos - start);
+
+      if (mPos >= mLimit) {
+        if (!fill()) {
+          throw syntaxError("Unterminated string");
+        }
+        continue;
+      }
+
+      // Escape sequence.
+      ++mPos;
+      int c = read();
+      switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          mScratch.append((char) c);
+          break;
+
+        case 'b':
+          mScratch.append('\b');
+          break;
+
+        case 'f':
+          mScratch.append('\f');
+          break;
+
+        case 'n':
+          mScratch.append('\n');
+          break;
+
+        case 'r':
+          mScratch.append('\r');
+          break;
+
+        case 't':
+          mScratch.append('\t');
+          break;
+
+        case 'u':
+          {
+            int value = 0;
+            for (int i = 0 ; i < 4 ; ++i) {
+              int digit = Character.digit(read(), 16);
+              if (-1 == digit) {
+                throw syntaxError("Invalid unicode escape");
+              }
+              value = (value << 4) | digit;
+            }
+            mScratch.append((char) value);
+          }
+          break;
+
+        default:
+          throw syntaxError("Invalid escape sequence");
+      }
+    }
+  }
+
+
+
+  private int nextNonWhitespace() throws IOException
+  {
+    while (true) {
+      int c = read();
+      if (' ' != c && '\t' != c && '\n' != c && '\r' != c) {
+        return c;
+      }
+    }
+  }
+
+
+
+  private int read() throws IOException
+  {
+    if (mPos >= mLimit && !fill()) {
+      return -1;
+    }
+    return mBuffer[mPos++];
+  }
+
+
+
+  private boolean fill() throws IOException
+  {
+    mPos = 0;
+    mLimit = 0;
+    int read = mReader.read(mBuffer, 0, mBuffer.length);
+    if (read <= 0) {
+      return false;
+    }
+    mLimit = read;
+    return true;
+  }
+
+
+
+  private MalformedJSONException syntaxError(String message)
+  {
+    return new MalformedJSONException(message);
+  }
+}
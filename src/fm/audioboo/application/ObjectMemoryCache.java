@@ -10,38 +10,310 @@
 
 package fm.audioboo.application;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
 
 /**
  * Simple in-memory cache for arbitrary objects.
+ *
+ * Entries expire after the timeout given when they're stored. In addition,
+ * the cache is bounded both in the number of entries and in their estimated
+ * size; when either is exceeded, the least recently used entries are evicted.
+ *
+ * The cache is safe to use from multiple threads. Keys are spread over a
+ * number of stripes, each with its own lock and LRU order, and a background
+ * thread periodically removes expired entries. The limits apply to the cache
+ * as a whole; when they're exceeded, the least recently used entries across
+ * all stripes are evicted. Entries larger than the whole cache are not
+ * stored.
  **/
 public class ObjectMemoryCache
 {
+  /***************************************************************************
+   * Public constants
+   **/
+  // Default limits
+  public static final int     DEFAULT_MAX_ENTRIES = 128;
+  public static final long    DEFAULT_MAX_SIZE    = 1024 * 1024;
+
+
   /***************************************************************************
    * Private constants
    **/
-  private static final String     LTAG = "ObjectMemoryCache";
+  private static final String LTAG                = "ObjectMemoryCache";
+
+  // Number of stripes.
+  private static final int    STRIPES             = 4;
+
+  // Interval at which expired entries are swept, in milliseconds.
+  private static final int    SWEEP_INTERVAL      = 60 * 1000;
+
+  // Size estimates, in bytes, for entries whose size isn't given explicitly.
+  // Collections are estimated by their number of elements; most of what we
+  // cache are parsed Boos and Users.
+  private static final int    ENTRY_OVERHEAD      = 64;
+  private static final int    ELEMENT_SIZE        = 2048;
+
+
+  /***************************************************************************
+   * Cache entry.
+   **/
+  private static class Entry
+  {
+    public long   mExpires;
+    public long   mSize;
+    public Object mValue;
+    // Value of mClock when the entry was last stored or retrieved.
+    public long   mAccessed;
+  }
+
+
+
+  /***************************************************************************
+   * A stripe holds part of the cache's entries in LRU order. All access must
+   * be synchronized on the stripe; the cache's totals are kept up to date by
+   * the stripe.
+   **/
+  private class Stripe
+  {
+    public LinkedHashMap<Object, Entry> mEntries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+    public long                         mHits = 0;
+    public long                         mMisses = 0;
+    public long                         mEvictions = 0;
+    public long                         mExpirations = 0;
+
+
+    public void add(Object key, Entry entry)
+    {
+      mEntries.put(key, entry);
+      mTotalSize.addAndGet(entry.mSize);
+      mTotalEntries.incrementAndGet();
+    }
+
+
+
+    public void remove(Object key)
+    {
+      Entry entry = mEntries.remove(key);
+      if (null != entry) {
+        removed(entry);
+      }
+    }
+
+
+
+    public void clear()
+    {
+      for (Entry entry : mEntries.values()) {
+        removed(entry);
+      }
+      mEntries.clear();
+    }
+
+
+
+    /**
+     * Removes expired entries.
+     **/
+    public void sweep(long now)
+    {
+      Iterator<Entry> iter = mEntries.values().iterator();
+      while (iter.hasNext()) {
+        Entry entry = iter.next();
+        if (entry.mExpires < now) {
+          iter.remove();
+          removed(entry);
+          ++mExpirations;
+        }
+      }
+    }
+
+
+
+    /**
+     * Returns the least recently used entry other than the one for the given
+     * key, or null if there is none.
+     **/
+    public Map.Entry<Object, Entry> eldest(Object keep)
+    {
+      for (Map.Entry<Object, Entry> entry : mEntries.entrySet()) {
+        if (!entry.getKey().equals(keep)) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+
+
+    /**
+     * Evicts the least recently used entry other than the one for the given
+     * key, if it was last accessed at the given time. Returns false if it
+     * was accessed since.
+     **/
+    public boolean evict(Object keep, long accessed)
+    {
+      Map.Entry<Object, Entry> eldest = eldest(keep);
+      if (null == eldest || eldest.getValue().mAccessed != accessed) {
+        return false;
+      }
+      mEntries.remove(eldest.getKey());
+      removed(eldest.getValue());
+      ++mEvictions;
+      return true;
+    }
+
+
+
+    private void removed(Entry entry)
+    {
+      mTotalSize.addAndGet(-entry.mSize);
+      mTotalEntries.decrementAndGet();
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Removes expired entries in the background.
+   **/
+  private class Sweeper extends Thread
+  {
+    public volatile boolean mKeepRunning = true;
+
+
+    public Sweeper()
+    {
+      super("ObjectMemoryCache.Sweeper");
+      setDaemon(true);
+      setPriority(Thread.MIN_PRIORITY);
+    }
+
+
+
+    @Override
+    public void run()
+    {
+      while (mKeepRunning) {
+        try {
+          sleep(SWEEP_INTERVAL);
+        } catch (InterruptedException ex) {
+          // Ignore
+        }
+        if (!mKeepRunning) {
+          break;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Stripe stripe : mStripes) {
+          synchronized (stripe)
+          {
+            stripe.sweep(now);
+          }
+        }
+        // Log.d(LTAG, "Swept: " + ObjectMemoryCache.this);
+      }
+    }
+  }
 
 
 
   /***************************************************************************
    * Private data
    **/
-  // First item in pair is an expiration timestamp, second is the data.
-  private HashMap<Object, Pair<Double, Object>> mCache = new HashMap<Object, Pair<Double, Object>>();
+  private Stripe[]      mStripes;
+
+  // Limits, and the totals they apply to.
+  private int           mMaxEntries;
+  private long          mMaxSize;
+  private AtomicInteger mTotalEntries = new AtomicInteger();
+  private AtomicLong    mTotalSize = new AtomicLong();
+
+  // Orders accesses across stripes.
+  private AtomicLong    mClock = new AtomicLong();
+
+  private Sweeper       mSweeper;
 
 
   /***************************************************************************
    * Implementation
    **/
+  public ObjectMemoryCache()
+  {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SIZE);
+  }
+
+
+
+  /**
+   * Limits the cache to maxEntries entries with an estimated total size of
+   * maxSize bytes.
+   **/
+  public ObjectMemoryCache(int maxEntries, long maxSize)
+  {
+    mMaxEntries = Math.max(1, maxEntries);
+    mMaxSize = Math.max(1, maxSize);
+
+    mStripes = new Stripe[STRIPES];
+    for (int i = 0 ; i < STRIPES ; ++i) {
+      mStripes[i] = new Stripe();
+    }
+
+    mSweeper = new Sweeper();
+    mSweeper.start();
+  }
+
+
 
   /**
-   * Put data in cache, with the given timeout in seconds.
+   * Put data in cache, with the given timeout in seconds. The size of the
+   * data is estimated.
    **/
   public void put(Object key, Object value, double timeout)
   {
-    double now = System.currentTimeMillis() / 1000.0;
-    mCache.put(key, new Pair<Double, Object>(now + timeout, value));
+    put(key, value, timeout, estimateSize(value));
+  }
+
+
+
+  /**
+   * Put data of the given size (in bytes) in cache, with the given timeout
+   * in seconds. Storing null is the same as invalidating the key, and so is
+   * storing data larger than the whole cache.
+   **/
+  public void put(Object key, Object value, double timeout, long size)
+  {
+    Stripe stripe = stripeFor(key);
+    synchronized (stripe)
+    {
+      stripe.remove(key);
+      if (null == value) {
+        return;
+      }
+
+      if (size > mMaxSize) {
+        // Would only evict everything else.
+        Log.w(LTAG, "Not caching " + key + ", too large: " + size);
+        return;
+      }
+
+      Entry entry = new Entry();
+      entry.mExpires = System.currentTimeMillis() + (long) (timeout * 1000);
+      entry.mSize = size;
+      entry.mValue = value;
+      entry.mAccessed = mClock.incrementAndGet();
+      stripe.add(key, entry);
+    }
+
+    trim(key);
   }
 
 
@@ -52,19 +324,26 @@ public class ObjectMemoryCache
    **/
   public Object get(Object key)
   {
-    double now = System.currentTimeMillis() / 1000.0;
+    Stripe stripe = stripeFor(key);
+    synchronized (stripe)
+    {
+      Entry entry = stripe.mEntries.get(key);
+      if (null == entry) {
+        ++stripe.mMisses;
+        return null;
+      }
 
-    if (!mCache.containsKey(key)) {
-      return null;
-    }
+      if (entry.mExpires < System.currentTimeMillis()) {
+        stripe.remove(key);
+        ++stripe.mExpirations;
+        ++stripe.mMisses;
+        return null;
+      }
 
-    Pair<Double, Object> value = mCache.get(key);
-    if (value.mFirst < now) {
-      mCache.remove(key);
-      return null;
+      ++stripe.mHits;
+      entry.mAccessed = mClock.incrementAndGet();
+      return entry.mValue;
     }
-
-    return value.mSecond;
   }
 
 
@@ -74,11 +353,182 @@ public class ObjectMemoryCache
    **/
   public void invalidate(Object key)
   {
-    if (!mCache.containsKey(key)) {
-      return;
+    Stripe stripe = stripeFor(key);
+    synchronized (stripe)
+    {
+      stripe.remove(key);
+    }
+  }
+
+
+
+  /**
+   * Removes all entries.
+   **/
+  public void clear()
+  {
+    for (Stripe stripe : mStripes) {
+      synchronized (stripe)
+      {
+        stripe.clear();
+      }
+    }
+  }
+
+
+
+  /**
+   * Stops the background sweep; the cache remains usable.
+   **/
+  public void release()
+  {
+    mSweeper.mKeepRunning = false;
+    mSweeper.interrupt();
+  }
+
+
+
+  /***************************************************************************
+   * Statistics
+   **/
+  public int getEntryCount()
+  {
+    return mTotalEntries.get();
+  }
+
+
+
+  public long getSize()
+  {
+    return mTotalSize.get();
+  }
+
+
+
+  public long getHits()
+  {
+    long result = 0;
+    for (Stripe stripe : mStripes) {
+      synchronized (stripe)
+      {
+        result += stripe.mHits;
+      }
+    }
+    return result;
+  }
+
+
+
+  public long getMisses()
+  {
+    long result = 0;
+    for (Stripe stripe : mStripes) {
+      synchronized (stripe)
+      {
+        result += stripe.mMisses;
+      }
     }
+    return result;
+  }
+
 
-    mCache.remove(key);
+
+  /**
+   * Returns the number of entries evicted to stay within the cache's limits.
+   * Expired entries are counted separately.
+   **/
+  public long getEvictions()
+  {
+    long result = 0;
+    for (Stripe stripe : mStripes) {
+      synchronized (stripe)
+      {
+        result += stripe.mEvictions;
+      }
+    }
+    return result;
   }
 
+
+
+  public long getExpirations()
+  {
+    long result = 0;
+    for (Stripe stripe : mStripes) {
+      synchronized (stripe)
+      {
+        result += stripe.mExpirations;
+      }
+    }
+    return result;
+  }
+
+
+
+  public String toString()
+  {
+    return String.format("<%s:entries=%d:size=%d:hits=%d:misses=%d:evictions=%d:expirations=%d>",
+        LTAG, getEntryCount(), getSize(), getHits(), getMisses(), getEvictions(),
+        getExpirations());
+  }
+
+
+
+  /***************************************************************************
+   * Helpers
+   **/
+  private Stripe stripeFor(Object key)
+  {
+    return mStripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+
+
+  /**
+   * Evicts entries until the cache is within its limits. Each stripe keeps
+   * its entries in LRU order, so the least recently used entry of the whole
+   * cache is the oldest of the stripes' eldest entries. The entry for the
+   * given key was just stored, and is kept.
+   **/
+  private void trim(Object keep)
+  {
+    while (mTotalEntries.get() > mMaxEntries || mTotalSize.get() > mMaxSize) {
+      Stripe oldest = null;
+      long accessed = Long.MAX_VALUE;
+      for (Stripe stripe : mStripes) {
+        synchronized (stripe)
+        {
+          Map.Entry<Object, Entry> eldest = stripe.eldest(keep);
+          if (null != eldest && eldest.getValue().mAccessed < accessed) {
+            oldest = stripe;
+            accessed = eldest.getValue().mAccessed;
+          }
+        }
+      }
+
+      if (null == oldest) {
+        // Nothing left to evict.
+        return;
+      }
+
+      // If the entry was accessed in the meantime, just look again.
+      synchronized (oldest)
+      {
+        oldest.evict(keep, accessed);
+      }
+    }
+  }
+
+
+
+  private static long estimateSize(Object value)
+  {
+    if (value instanceof BooList) {
+      return ENTRY_OVERHEAD + ((BooList) value).mClips.size() * ELEMENT_SIZE;
+    }
+    if (value instanceof Collection<?>) {
+      return ENTRY_OVERHEAD + ((Collection<?>) value).size() * ELEMENT_SIZE;
+    }
+    return ENTRY_OVERHEAD + ELEMENT_SIZE;
+  }
 }
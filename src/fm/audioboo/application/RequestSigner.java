@@ -0,0 +1,207 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+
+/**
+ * Computes SHA-1 request signatures. Strings are UTF-8 encoded into a
+ * reusable buffer that is handed to the digest whenever it fills up, and the
+ * digest is hex-encoded via a lookup table.
+ *
+ * Signers are not thread-safe; use get() to obtain the calling thread's
+ * instance.
+ **/
+class RequestSigner
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Size of the encoding buffer.
+  private static final int    BUFFER_SIZE   = 1024;
+
+  // Hex digits
+  private static final char[] HEX_DIGITS    = "0123456789abcdef".toCharArray();
+
+  // One instance per thread.
+  private static final ThreadLocal<RequestSigner> sSigners = new ThreadLocal<RequestSigner>() {
+    @Override
+    protected RequestSigner initialValue()
+    {
+      return new RequestSigner();
+    }
+  };
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private MessageDigest     mDigest;
+
+  private byte[]            mBuffer = new byte[BUFFER_SIZE];
+  private int               mLength = 0;
+
+  private byte[]            mResult;
+  private char[]            mHex;
+
+  // Scratch list for sorting parameter names.
+  private ArrayList<String> mKeys = new ArrayList<String>();
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public static RequestSigner get()
+  {
+    return sSigners.get();
+  }
+
+
+
+  private RequestSigner()
+  {
+    try {
+      mDigest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-1 not available: " + ex.getMessage());
+    }
+    mResult = new byte[mDigest.getDigestLength()];
+    mHex = new char[mResult.length * 2];
+  }
+
+
+
+  /**
+   * Starts a new signature.
+   **/
+  public RequestSigner reset()
+  {
+    mDigest.reset();
+    mLength = 0;
+    return this;
+  }
+
+
+
+  /**
+   * Returns a list for sorting parameter names in. The list is cleared, and
+   * reused by subsequent calls.
+   **/
+  public ArrayList<String> keys()
+  {
+    mKeys.clear();
+    return mKeys;
+  }
+
+
+
+  /**
+   * Appends an ASCII character.
+   **/
+  public RequestSigner append(char c)
+  {
+    if (mLength >= mBuffer.length) {
+      flush();
+    }
+    mBuffer[mLength++] = (byte) c;
+    return this;
+  }
+
+
+
+  /**
+   * Appends the UTF-8 encoding of the given string.
+   **/
+  public RequestSigner append(String str)
+  {
+    int len = str.length();
+    for (int i = 0 ; i < len ; ++i) {
+      // Make sure the longest sequence fits.
+      if (mLength + 4 > mBuffer.length) {
+        flush();
+      }
+
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        mBuffer[mLength++] = (byte) c;
+      }
+      else if (c < 0x800) {
+        mBuffer[mLength++] = (byte) (0xc0 | (c >> 6));
+        mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < len
+          && Character.isLowSurrogate(str.charAt(i + 1)))
+      {
+        int cp = Character.toCodePoint(c, str.charAt(++i));
+        mBuffer[mLength++] = (byte) (0xf0 | (cp >> 18));
+        mBuffer[mLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        mBuffer[mLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        mBuffer[mLength++] = (byte) (0x80 | (cp & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+        // Unpaired surrogate; String.getBytes() substitutes these, too.
+        mBuffer[mLength++] = (byte) '?';
+      }
+      else {
+        mBuffer[mLength++] = (byte) (0xe0 | (c >> 12));
+        mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return this;
+  }
+
+
+
+  /**
+   * Returns the digest, for feeding it data directly. Anything appended so
+   * far has been passed to it.
+   **/
+  public MessageDigest digest()
+  {
+    flush();
+    return mDigest;
+  }
+
+
+
+  /**
+   * Finishes the signature, and returns it as a lower-case hex string.
+   **/
+  public String finish()
+  {
+    try {
+      digest().digest(mResult, 0, mResult.length);
+    } catch (DigestException ex) {
+      throw new IllegalStateException("Could not compute digest: " + ex.getMessage());
+    }
+
+    for (int i = 0 ; i < mResult.length ; ++i) {
+      mHex[i * 2] = HEX_DIGITS[(mResult[i] >> 4) & 0x0f];
+      mHex[i * 2 + 1] = HEX_DIGITS[mResult[i] & 0x0f];
+    }
+    return new String(mHex);
+  }
+
+
+
+  private void flush()
+  {
+    if (mLength > 0) {
+      mDigest.update(mBuffer, 0, mLength);
+      mLength = 0;
+    }
+  }
+}
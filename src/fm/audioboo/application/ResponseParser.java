@@ -19,6 +19,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.InputStream;
+import java.io.IOException;
+
 import java.util.Date;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
@@ -165,59 +168,103 @@ class ResponseParser
    **/
 
   /**
-   * Returns a filled BooList or null. If null is returned, the Handler will
+   * Returns a filled BooList or null. If null is returned, the Request will
    * have been sent an error code from the API.ERR_* list.
+   *
+   * The list is parsed straight from the response stream, rather than from a
+   * String holding the entire response; lists are the largest responses we
+   * handle. IOExceptions other than malformed JSON are thrown to the caller.
    **/
-  public static Response<BooList> parseBooList(String response, Handler handler)
+  public static Response<BooList> parseBooList(InputStream is, API.Request req) throws IOException
   {
     try {
-      Response<JSONObject> body = retrieveBody(response, handler);
-      if (null == body) {
-        return null;
-      }
+      JSONStreamReader reader = new JSONStreamReader(is);
 
-      BooList list = new BooList();
-
-      JSONObject totals = body.mContent.getJSONObject(TOTALS);
-      list.mOffset = totals.getInt(TOTALS_OFFSET);
-      list.mCount = totals.getInt(TOTALS_COUNT);
+      Response<BooList> result = new Response<BooList>();
+      int version = -1;
+      API.APIException error = null;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (WINDOW.equals(name)) {
+          result.mWindow = reader.nextInt();
+        }
+        else if (TIMESTAMP.equals(name)) {
+          result.mTimestamp = reader.nextInt();
+        }
+        else if (VERSION.equals(name)) {
+          version = reader.nextInt();
+        }
+        else if (BODY.equals(name) && (-1 == version || EXPECTED_VERSION == version)) {
+          // Keys may arrive in any order; if the version is already known to
+          // be wrong, the body gets skipped below.
+          error = parseBooListBody(reader, result);
+        }
+        else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
 
-      // Read metadata for individual boos
-      JSONArray boos = null;
-      boolean isMessage = false;
-      if (body.mContent.has(AUDIO_CLIPS)) {
-        boos = body.mContent.getJSONArray(AUDIO_CLIPS);
+      if (-1 == version) {
+        throw new JSONStreamReader.MalformedJSONException("Version missing!");
       }
-      else if (body.mContent.has(MESSAGES)) {
-        boos = body.mContent.getJSONArray(MESSAGES);
-        isMessage = true;
+      if (EXPECTED_VERSION != version) {
+        Log.e(LTAG, "Response version did not match our expectations.");
+        Globals.get().mAPI.sendMessage(req, API.ERR_VERSION_MISMATCH);
+        return null;
       }
-      else {
-        Log.e(LTAG, "List missing!");
-        handler.obtainMessage(API.ERR_PARSE_ERROR).sendToTarget();
+
+      if (null != error) {
+        Globals.get().mAPI.sendMessage(req, API.ERR_API_ERROR, error);
         return null;
       }
 
-      for (int i = 0 ; i < boos.length() ; ++i) {
-        list.mClips.add(parseBoo(boos.getJSONObject(i), isMessage));
+      if (null == result.mContent) {
+        Log.e(LTAG, "List missing!");
+        Globals.get().mAPI.sendMessage(req, API.ERR_PARSE_ERROR);
+        return null;
       }
-      // Log.d(LTAG, "# clips: " + list.mClips.size());
+      // Log.d(LTAG, "# clips: " + result.mContent.mClips.size());
 
-      Response<BooList> result = new Response<BooList>();
-      result.mTimestamp = body.mTimestamp;
-      result.mWindow = body.mWindow;
-      result.mContent = list;
       return result;
 
+    } catch (JSONStreamReader.MalformedJSONException ex) {
+      Log.e(LTAG, "Could not parse JSON response: " + ex);
+      Globals.get().mAPI.sendMessage(req, API.ERR_PARSE_ERROR);
+      return null;
     } catch (JSONException ex) {
       Log.e(LTAG, "Could not parse JSON response: " + ex);
-      handler.obtainMessage(API.ERR_PARSE_ERROR).sendToTarget();
+      Globals.get().mAPI.sendMessage(req, API.ERR_PARSE_ERROR);
       return null;
     }
   }
 
 
 
+  /**
+   * Returns true if the response is well-formed JSON of the expected version,
+   * and doesn't report an error. Unlike the parse functions, this sends no
+   * messages.
+   **/
+  public static boolean isValidResponse(String response)
+  {
+    try {
+      JSONObject object = new JSONObject(response);
+      object.getInt(WINDOW);
+      object.getInt(TIMESTAMP);
+      if (EXPECTED_VERSION != object.getInt(VERSION)) {
+        return false;
+      }
+      return !object.getJSONObject(BODY).has(ERROR);
+    } catch (JSONException ex) {
+      return false;
+    }
+  }
+
+
+
   /**
    * Parses a registration response, returns the secret in Pair's first
    * member, and the key in the second.
@@ -617,6 +664,76 @@ class ResponseParser
 
 
 
+  /***************************************************************************
+   * Streaming parser helpers. Null values are treated like missing keys.
+   **/
+
+  /**
+   * Parses the body of a list response. Sets result.mContent if a list was
+   * found, and returns the error reported in the body, if any.
+   *
+   * Only the list itself is streamed; each Boo is read into a JSONObject and
+   * parsed like any other, so that the same fields are required.
+   **/
+  private static API.APIException parseBooListBody(JSONStreamReader reader,
+      Response<BooList> result) throws IOException, JSONException
+  {
+    BooList list = new BooList();
+    boolean haveList = false;
+    boolean haveClips = false;
+    JSONObject totals = null;
+    JSONObject error = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (JSONStreamReader.NULL == reader.peek()) {
+        reader.nextNull();
+      }
+      else if (TOTALS.equals(name)) {
+        totals = reader.nextJSONObject();
+      }
+      else if (AUDIO_CLIPS.equals(name) || (MESSAGES.equals(name) && !haveClips)) {
+        // If both are present, audio clips take precedence over messages.
+        boolean isMessage = MESSAGES.equals(name);
+        haveClips = !isMessage;
+        list.mClips.clear();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          list.mClips.add(parseBoo(reader.nextJSONObject(), isMessage));
+        }
+        reader.endArray();
+        haveList = true;
+      }
+      else if (ERROR.equals(name)) {
+        error = reader.nextJSONObject();
+      }
+      else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (null != error) {
+      JSONObject body = new JSONObject();
+      body.put(ERROR, error);
+      return parseError(body);
+    }
+
+    if (haveList) {
+      if (null == totals) {
+        throw new JSONException("Totals missing!");
+      }
+      list.mOffset = totals.getInt(TOTALS_OFFSET);
+      list.mCount = totals.getInt(TOTALS_COUNT);
+      result.mContent = list;
+    }
+    return null;
+  }
+
+
+
+
   /**
    * Parses a contact list response
    **/
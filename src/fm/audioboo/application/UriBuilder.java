@@ -0,0 +1,186 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.util.Map;
+import java.util.List;
+
+/**
+ * Builds request URIs in a single buffer, sized up front. Query parameters
+ * are percent-encoded in place; the encoding is the same as Uri.encode()'s,
+ * but without creating intermediate strings.
+ **/
+class UriBuilder
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Characters that don't need encoding, besides letters and digits. Same as
+  // Uri.encode().
+  private static final String UNRESERVED    = "_-!.~'()*";
+
+  // Hex digits
+  private static final char[] HEX_DIGITS    = "0123456789ABCDEF".toCharArray();
+
+  // Room reserved per parameter for separators and escapes.
+  private static final int    PARAM_SLACK   = 8;
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private StringBuilder mBuffer;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Start with the given URI.
+   **/
+  public UriBuilder(String base)
+  {
+    mBuffer = new StringBuilder(base.length() + 64);
+    mBuffer.append(base);
+  }
+
+
+
+  /**
+   * Start with an absolute URI made up of the given scheme, authority and
+   * path.
+   **/
+  public UriBuilder(String scheme, String authority, String path)
+  {
+    mBuffer = new StringBuilder(scheme.length() + path.length() + 64);
+    mBuffer.append(scheme).append("://").append(authority).append('/')
+      .append(path);
+  }
+
+
+
+  /**
+   * Appends a query string with the given parameters. String values are
+   * appended as key=value, lists as one key=value[] pair per element. Values
+   * of other types are skipped.
+   **/
+  public UriBuilder appendQuery(Map<String, Object> params)
+  {
+    mBuffer.append('?');
+    if (null == params) {
+      return this;
+    }
+
+    // Size the buffer once.
+    int required = mBuffer.length();
+    for (Map.Entry<String, Object> param : params.entrySet()) {
+      int keyLength = param.getKey().length() + PARAM_SLACK;
+      Object obj = param.getValue();
+      if (obj instanceof String) {
+        required += keyLength + ((String) obj).length();
+      }
+      else if (obj instanceof List<?>) {
+        for (Object o : (List<?>) obj) {
+          required += keyLength + o.toString().length();
+        }
+      }
+    }
+    mBuffer.ensureCapacity(required);
+
+    boolean first = true;
+    for (Map.Entry<String, Object> param : params.entrySet()) {
+      Object obj = param.getValue();
+      if (obj instanceof String) {
+        if (!first) {
+          mBuffer.append('&');
+        }
+        first = false;
+        encode(param.getKey());
+        mBuffer.append('=');
+        encode((String) obj);
+      }
+      else if (obj instanceof List<?>) {
+        for (Object o : (List<?>) obj) {
+          if (!first) {
+            mBuffer.append('&');
+          }
+          first = false;
+          encode(param.getKey());
+          mBuffer.append('=');
+          encode(o.toString());
+          mBuffer.append("[]");
+        }
+      }
+    }
+
+    return this;
+  }
+
+
+
+  @Override
+  public String toString()
+  {
+    return mBuffer.toString();
+  }
+
+
+
+  /**
+   * Appends the percent-encoded UTF-8 representation of str.
+   **/
+  private void encode(String str)
+  {
+    int len = str.length();
+    for (int i = 0 ; i < len ; ++i) {
+      char c = str.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9') || -1 != UNRESERVED.indexOf(c))
+      {
+        mBuffer.append(c);
+      }
+      else if (c < 0x80) {
+        appendEscaped(c);
+      }
+      else if (c < 0x800) {
+        appendEscaped(0xc0 | (c >> 6));
+        appendEscaped(0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < len
+          && Character.isLowSurrogate(str.charAt(i + 1)))
+      {
+        int cp = Character.toCodePoint(c, str.charAt(++i));
+        appendEscaped(0xf0 | (cp >> 18));
+        appendEscaped(0x80 | ((cp >> 12) & 0x3f));
+        appendEscaped(0x80 | ((cp >> 6) & 0x3f));
+        appendEscaped(0x80 | (cp & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+        // Unpaired surrogate; encoded as '?', as String.getBytes() does.
+        appendEscaped('?');
+      }
+      else {
+        appendEscaped(0xe0 | (c >> 12));
+        appendEscaped(0x80 | ((c >> 6) & 0x3f));
+        appendEscaped(0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+
+
+  private void appendEscaped(int b)
+  {
+    mBuffer.append('%').append(HEX_DIGITS[(b >> 4) & 0x0f])
+      .append(HEX_DIGITS[b & 0x0f]);
+  }
+}
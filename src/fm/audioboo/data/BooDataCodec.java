@@ -0,0 +1,637 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.data;
+
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.UUID;
+
+/**
+ * Binary encoding of BooData, for storing Boos on disk.
+ *
+ * A file starts with a magic number and format version, followed by the
+ * BooData record. Each record (BooData, User, Tag, etc.) is prefixed with its
+ * length, so fields appended to a record by later versions of the app are
+ * skipped by older readers. Fields are only ever appended to records, and
+ * readers must only read fields added after version 1 if hasMore() says the
+ * record contains them; otherwise they're left unset. Appending fields
+ * therefore does not change the format version; it's only bumped for changes
+ * older readers can't cope with, and such files are rejected with an
+ * UnsupportedVersionException.
+ *
+ * Files written with Java serialization, as Boos used to be, are still read.
+ **/
+public class BooDataCodec
+{
+  /***************************************************************************
+   * Thrown for files in a format version newer than this reader supports.
+   * Such files are valid, just not for us; they must not be discarded.
+   **/
+  public static class UnsupportedVersionException extends IOException
+  {
+    public UnsupportedVersionException(String message)
+    {
+      super(message);
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Public constants
+   **/
+  // Current format version; only bumped for incompatible changes.
+  public static final int   FORMAT_VERSION        = 1;
+
+
+  /***************************************************************************
+   * Private constants
+   **/
+  // "BooD"
+  private static final int  MAGIC                 = 0x426f6f44;
+
+  // First two bytes of Java serialization streams.
+  private static final int  SERIALIZATION_MAGIC   = 0xaced;
+
+  // Written instead of lengths/dates for null values.
+  private static final int  NULL_LENGTH           = -1;
+  private static final long NULL_DATE             = Long.MIN_VALUE;
+
+  // Buffer size for the first record, which will contain most of the data.
+  private static final int  RECORD_BUFFER_SIZE    = 1024;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Writes data to os; os is not closed.
+   **/
+  public static void encode(BooData data, OutputStream os) throws IOException
+  {
+    DataOutputStream out = new DataOutputStream(os);
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    writeBooData(out, data);
+    out.flush();
+  }
+
+
+
+  /**
+   * Reads BooData from is, in either the current or the Java serialization
+   * format; is is not closed.
+   **/
+  public static BooData decode(InputStream is) throws IOException
+  {
+    BufferedInputStream bis = new BufferedInputStream(is);
+    bis.mark(2);
+    int first = bis.read();
+    int second = bis.read();
+    bis.reset();
+    if (SERIALIZATION_MAGIC == ((first << 8) | second)) {
+      return decodeSerialized(bis);
+    }
+
+    DataInputStream in = new DataInputStream(bis);
+    if (MAGIC != in.readInt()) {
+      throw new IOException("Not a Boo file.");
+    }
+    int version = in.readInt();
+    if (version > FORMAT_VERSION) {
+      // Written by a newer app in a format we can't read.
+      throw new UnsupportedVersionException("Unsupported Boo file version " + version);
+    }
+    return readBooData(in);
+  }
+
+
+
+  /**
+   * Reads data written by previous versions via Java serialization.
+   **/
+  private static BooData decodeSerialized(InputStream is) throws IOException
+  {
+    ObjectInputStream ois = new ObjectInputStream(is);
+    try {
+      return (BooData) ois.readObject();
+    } catch (ClassNotFoundException ex) {
+      throw new IOException("Class not found: " + ex.getMessage());
+    } catch (ClassCastException ex) {
+      throw new IOException("Not a Boo: " + ex.getMessage());
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Records
+   **/
+  private static void writeBooData(DataOutputStream parent, BooData data) throws IOException
+  {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(RECORD_BUFFER_SIZE);
+    DataOutputStream out = new DataOutputStream(buf);
+
+    out.writeInt(data.mId);
+    writeString(out, data.mTitle);
+    out.writeBoolean(data.mIsMessage);
+    out.writeBoolean(data.mIsRead);
+
+    out.writeBoolean(null != data.mUUID);
+    if (null != data.mUUID) {
+      out.writeLong(data.mUUID.getMostSignificantBits());
+      out.writeLong(data.mUUID.getLeastSignificantBits());
+    }
+
+    out.writeDouble(data.mDuration);
+
+    if (null == data.mTags) {
+      out.writeInt(NULL_LENGTH);
+    }
+    else {
+      out.writeInt(data.mTags.size());
+      for (Tag tag : data.mTags) {
+        writeTag(out, tag);
+      }
+    }
+
+    writeUser(out, data.mUser);
+
+    writeDate(out, data.mRecordedAt);
+    writeDate(out, data.mUpdatedAt);
+    writeDate(out, data.mUploadedAt);
+
+    writeLocation(out, data.mLocation);
+
+    writeUri(out, data.mHighMP3Url);
+    writeUri(out, data.mImageUrl);
+    writeUri(out, data.mDetailUrl);
+    writeUri(out, data.mThumbImageUrl);
+    writeUri(out, data.mFullImageUrl);
+
+    writeString(out, data.mFilename);
+
+    if (null == data.mRecordings) {
+      out.writeInt(NULL_LENGTH);
+    }
+    else {
+      out.writeInt(data.mRecordings.size());
+      for (BooData.Recording rec : data.mRecordings) {
+        writeRecording(out, rec);
+      }
+    }
+
+    out.writeInt(data.mPlays);
+    out.writeInt(data.mComments);
+
+    writeDestinationInfo(out, data.mDestinationInfo);
+    writeUploadInfo(out, data.mUploadInfo);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static BooData readBooData(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    BooData data = new BooData();
+    data.mId = in.readInt();
+    data.mTitle = readString(in);
+    data.mIsMessage = in.readBoolean();
+    data.mIsRead = in.readBoolean();
+
+    data.mUUID = null;
+    if (in.readBoolean()) {
+      long msb = in.readLong();
+      long lsb = in.readLong();
+      data.mUUID = new UUID(msb, lsb);
+    }
+
+    data.mDuration = in.readDouble();
+
+    int count = in.readInt();
+    if (NULL_LENGTH != count) {
+      data.mTags = new LinkedList<Tag>();
+      for (int i = 0 ; i < count ; ++i) {
+        data.mTags.add(readTag(in));
+      }
+    }
+
+    data.mUser = readUser(in);
+
+    data.mRecordedAt = readDate(in);
+    data.mUpdatedAt = readDate(in);
+    data.mUploadedAt = readDate(in);
+
+    data.mLocation = readLocation(in);
+
+    data.mHighMP3Url = readUri(in);
+    data.mImageUrl = readUri(in);
+    data.mDetailUrl = readUri(in);
+    data.mThumbImageUrl = readUri(in);
+    data.mFullImageUrl = readUri(in);
+
+    data.mFilename = readString(in);
+
+    count = in.readInt();
+    if (NULL_LENGTH != count) {
+      data.mRecordings = new LinkedList<BooData.Recording>();
+      for (int i = 0 ; i < count ; ++i) {
+        data.mRecordings.add(readRecording(in));
+      }
+    }
+
+    data.mPlays = in.readInt();
+    data.mComments = in.readInt();
+
+    data.mDestinationInfo = readDestinationInfo(in);
+    data.mUploadInfo = readUploadInfo(in);
+
+    return data;
+  }
+
+
+
+  private static void writeTag(DataOutputStream parent, Tag tag) throws IOException
+  {
+    if (null == tag) {
+      parent.writeInt(NULL_LENGTH);
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+
+    writeString(out, tag.mDisplay);
+    writeString(out, tag.mNormalised);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static Tag readTag(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    Tag tag = new Tag();
+    tag.mDisplay = readString(in);
+    tag.mNormalised = readString(in);
+    return tag;
+  }
+
+
+
+  private static void writeUser(DataOutputStream parent, User user) throws IOException
+  {
+    if (null == user) {
+      parent.writeInt(NULL_LENGTH);
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+
+    out.writeInt(user.mId);
+    writeString(out, user.mUsername);
+    writeString(out, user.mFullName);
+    writeString(out, user.mDescription);
+    out.writeBoolean(user.mIsMessageSender);
+    out.writeBoolean(user.mMessagingEnabled);
+    out.writeBoolean(user.mFollowingEnabled);
+
+    writeUri(out, user.mProfileUrl);
+    writeUri(out, user.mImageUrl);
+    writeUri(out, user.mThumbImageUrl);
+    writeUri(out, user.mFullImageUrl);
+
+    out.writeInt(user.mFollowers);
+    out.writeInt(user.mFollowings);
+    out.writeInt(user.mAudioClips);
+    out.writeInt(user.mFavorites);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static User readUser(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    User user = new User();
+    user.mId = in.readInt();
+    user.mUsername = readString(in);
+    user.mFullName = readString(in);
+    user.mDescription = readString(in);
+    user.mIsMessageSender = in.readBoolean();
+    user.mMessagingEnabled = in.readBoolean();
+    user.mFollowingEnabled = in.readBoolean();
+
+    user.mProfileUrl = readUri(in);
+    user.mImageUrl = readUri(in);
+    user.mThumbImageUrl = readUri(in);
+    user.mFullImageUrl = readUri(in);
+
+    user.mFollowers = in.readInt();
+    user.mFollowings = in.readInt();
+    user.mAudioClips = in.readInt();
+    user.mFavorites = in.readInt();
+    return user;
+  }
+
+
+
+  private static void writeLocation(DataOutputStream parent, BooLocation loc) throws IOException
+  {
+    if (null == loc) {
+      parent.writeInt(NULL_LENGTH);
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+
+    out.writeDouble(loc.mLatitude);
+    out.writeDouble(loc.mLongitude);
+    out.writeDouble(loc.mAccuracy);
+    writeString(out, loc.mDescription);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static BooLocation readLocation(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    BooLocation loc = new BooLocation();
+    loc.mLatitude = in.readDouble();
+    loc.mLongitude = in.readDouble();
+    loc.mAccuracy = in.readDouble();
+    loc.mDescription = readString(in);
+    return loc;
+  }
+
+
+
+  private static void writeRecording(DataOutputStream parent, BooData.Recording rec) throws IOException
+  {
+    if (null == rec) {
+      parent.writeInt(NULL_LENGTH);
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+
+    writeString(out, rec.mFilename);
+    out.writeDouble(rec.mDuration);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static BooData.Recording readRecording(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    String filename = readString(in);
+    double duration = in.readDouble();
+    return new BooData.Recording(filename, duration);
+  }
+
+
+
+  private static void writeDestinationInfo(DataOutputStream parent, DestinationInfo info) throws IOException
+  {
+    if (null == info) {
+      parent.writeInt(NULL_LENGTH);
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+
+    out.writeInt(info.mDestinationId);
+    out.writeBoolean(info.mIsChannel);
+    writeString(out, info.mDestinationName);
+    out.writeInt(info.mInReplyTo);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static DestinationInfo readDestinationInfo(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    DestinationInfo info = new DestinationInfo();
+    info.mDestinationId = in.readInt();
+    info.mIsChannel = in.readBoolean();
+    info.mDestinationName = readString(in);
+    info.mInReplyTo = in.readInt();
+    return info;
+  }
+
+
+
+  private static void writeUploadInfo(DataOutputStream parent, UploadInfo info) throws IOException
+  {
+    if (null == info) {
+      parent.writeInt(NULL_LENGTH);
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+
+    out.writeInt(info.mAudioChunkId);
+    out.writeInt(info.mAudioSize);
+    out.writeInt(info.mAudioUploaded);
+    out.writeInt(info.mImageChunkId);
+    out.writeInt(info.mImageSize);
+    out.writeInt(info.mImageUploaded);
+    out.writeInt(info.mUploadStage);
+    out.writeBoolean(info.mUploadError);
+
+    writeRecord(parent, buf);
+  }
+
+
+
+  private static UploadInfo readUploadInfo(DataInputStream parent) throws IOException
+  {
+    DataInputStream in = readRecord(parent);
+    if (null == in) {
+      return null;
+    }
+
+    UploadInfo info = new UploadInfo();
+    info.mAudioChunkId = in.readInt();
+    info.mAudioSize = in.readInt();
+    info.mAudioUploaded = in.readInt();
+    info.mImageChunkId = in.readInt();
+    info.mImageSize = in.readInt();
+    info.mImageUploaded = in.readInt();
+    info.mUploadStage = in.readInt();
+    info.mUploadError = in.readBoolean();
+    return info;
+  }
+
+
+
+  /***************************************************************************
+   * Helpers
+   **/
+
+  /**
+   * Writes a record's contents to its parent, prefixed with its length.
+   **/
+  private static void writeRecord(DataOutputStream parent, ByteArrayOutputStream buf) throws IOException
+  {
+    parent.writeInt(buf.size());
+    buf.writeTo(parent);
+  }
+
+
+
+  /**
+   * Reads a record from its parent, and returns a stream over its contents,
+   * or null if the record was null.
+   **/
+  private static DataInputStream readRecord(DataInputStream parent) throws IOException
+  {
+    int length = parent.readInt();
+    if (NULL_LENGTH == length) {
+      return null;
+    }
+    if (length < 0) {
+      throw new IOException("Invalid record length " + length);
+    }
+
+    byte[] buf = new byte[length];
+    parent.readFully(buf);
+    return new DataInputStream(new ByteArrayInputStream(buf));
+  }
+
+
+
+  /**
+   * Returns true if there are fields left in the record read via
+   * readRecord(). Fields appended to a record must only be read if so, as
+   * files written before they were added don't contain them.
+   **/
+  private static boolean hasMore(DataInputStream in) throws IOException
+  {
+    // The record is in memory, so this is exact.
+    return in.available() > 0;
+  }
+
+
+
+  /**
+   * Strings are written as the length of their UTF-8 encoding, followed by
+   * the encoding; unlike writeUTF(), that's not limited to 64K.
+   **/
+  private static void writeString(DataOutputStream out, String str) throws IOException
+  {
+    if (null == str) {
+      out.writeInt(NULL_LENGTH);
+      return;
+    }
+    byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (NULL_LENGTH == length) {
+      return null;
+    }
+    if (length < 0) {
+      throw new IOException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+
+
+  private static void writeUri(DataOutputStream out, Uri uri) throws IOException
+  {
+    writeString(out, (null == uri) ? null : uri.toString());
+  }
+
+
+
+  private static Uri readUri(DataInputStream in) throws IOException
+  {
+    String str = readString(in);
+    return (null == str) ? null : Uri.parse(str);
+  }
+
+
+
+  private static void writeDate(DataOutputStream out, Date date) throws IOException
+  {
+    out.writeLong((null == date) ? NULL_DATE : date.getTime());
+  }
+
+
+
+  private static Date readDate(DataInputStream in) throws IOException
+  {
+    long time = in.readLong();
+    return (NULL_DATE == time) ? null : new Date(time);
+  }
+}
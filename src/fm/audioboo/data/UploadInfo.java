@@ -31,7 +31,9 @@ public class UploadInfo implements Parcelable, Serializable
   /***************************************************************************
    * Public constants
    **/
-  // Upload stage; first the audio is uploaded, then the image, then metadata.
+  // Upload stage; first the audio and image attachments are uploaded side by
+  // side, then metadata. UPLOAD_STAGE_IMAGE is only found in uploads started
+  // when the image was uploaded after the audio; the audio is complete then.
   public static final int UPLOAD_STAGE_AUDIO    = 0;
   public static final int UPLOAD_STAGE_IMAGE    = 1;
   public static final int UPLOAD_STAGE_METADATA = 2;
@@ -52,6 +54,15 @@ public class UploadInfo implements Parcelable, Serializable
   public boolean  mUploadError      = false;
 
 
+  /**
+   * For BooDataCodec.
+   **/
+  UploadInfo()
+  {
+  }
+
+
+
   public UploadInfo(BooData data)
   {
     if (null != data.mHighMP3Url) {
@@ -0,0 +1,197 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.service;
+
+import android.content.SharedPreferences;
+
+import fm.audioboo.application.Globals;
+
+import android.util.Log;
+
+/**
+ * Estimates upload bandwidth as an exponentially weighted moving average of
+ * the throughput of acknowledged chunks, and derives the chunk size that
+ * should take Constants.TARGET_UPLOAD_TIME to upload from it.
+ *
+ * The estimate is kept in the preferences, so that uploads start out with a
+ * sensible chunk size rather than ramping up from the minimum every time the
+ * service starts.
+ **/
+public class BandwidthEstimator
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG                = "BandwidthEstimator";
+
+  // Preferences keys
+  private static final String PREF_ESTIMATE       = "upload.bandwidth-estimate";
+  private static final String PREF_SAMPLES        = "upload.bandwidth-samples";
+
+  // Weight of a new sample in the average.
+  private static final float  SMOOTHING           = 0.3f;
+
+  // Samples shorter than this (msec) say more about latency than bandwidth.
+  private static final long   MIN_SAMPLE_TIME     = 100;
+
+  // Factor the estimate is reduced by on upload failures.
+  private static final float  FAILURE_FACTOR      = 0.5f;
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  // Estimate in bytes/sec; 0 if there is none yet.
+  private float   mEstimate = 0;
+  // Number of samples that went into the estimate, and the last sample.
+  private long    mSamples = 0;
+  private float   mLastSample = 0;
+  private long    mFailures = 0;
+  // Whether the estimate changed since it was last saved.
+  private boolean mDirty = false;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public BandwidthEstimator()
+  {
+    SharedPreferences prefs = Globals.get().getPrefs();
+    if (null == prefs) {
+      return;
+    }
+    mEstimate = prefs.getFloat(PREF_ESTIMATE, 0);
+    mSamples = prefs.getLong(PREF_SAMPLES, 0);
+    // Log.d(LTAG, "Loaded: " + this);
+  }
+
+
+
+  /**
+   * Adds the time in msec it took to upload the given number of bytes to the
+   * estimate.
+   **/
+  public synchronized void addSample(long bytes, long msec)
+  {
+    if (bytes <= 0 || msec < MIN_SAMPLE_TIME) {
+      return;
+    }
+
+    mLastSample = (bytes * 1000f) / msec;
+    if (mEstimate <= 0) {
+      mEstimate = mLastSample;
+    }
+    else {
+      mEstimate = SMOOTHING * mLastSample + (1 - SMOOTHING) * mEstimate;
+    }
+    ++mSamples;
+    mDirty = true;
+    // Log.d(LTAG, "Sample: " + bytes + " bytes in " + msec + " msec: " + this);
+  }
+
+
+
+  /**
+   * Reduces the estimate after an upload failed; failures on slow links tend
+   * to be timeouts, so smaller chunks are more likely to get through.
+   **/
+  public synchronized void addFailure()
+  {
+    mEstimate *= FAILURE_FACTOR;
+    ++mFailures;
+    mDirty = true;
+  }
+
+
+
+  /**
+   * Returns the chunk size to use for the next chunk.
+   **/
+  public synchronized int getChunkSize()
+  {
+    if (mEstimate <= 0) {
+      return Constants.MIN_UPLOAD_CHUNK_SIZE;
+    }
+
+    long size = (long) (mEstimate * Constants.TARGET_UPLOAD_TIME / 1000);
+    if (size < Constants.MIN_UPLOAD_CHUNK_SIZE) {
+      return Constants.MIN_UPLOAD_CHUNK_SIZE;
+    }
+    if (size > Constants.MAX_UPLOAD_CHUNK_SIZE) {
+      return Constants.MAX_UPLOAD_CHUNK_SIZE;
+    }
+    return (int) size;
+  }
+
+
+
+  /**
+   * Writes the estimate to the preferences, if it changed.
+   **/
+  public synchronized void save()
+  {
+    if (!mDirty) {
+      return;
+    }
+
+    SharedPreferences prefs = Globals.get().getPrefs();
+    if (null == prefs) {
+      return;
+    }
+    SharedPreferences.Editor edit = prefs.edit();
+    edit.putFloat(PREF_ESTIMATE, mEstimate);
+    edit.putLong(PREF_SAMPLES, mSamples);
+    edit.commit();
+    mDirty = false;
+
+    Log.i(LTAG, "Saved: " + this);
+  }
+
+
+
+  /**
+   * Diagnostics
+   **/
+  public synchronized float getEstimate()
+  {
+    return mEstimate;
+  }
+
+
+
+  public synchronized float getLastSample()
+  {
+    return mLastSample;
+  }
+
+
+
+  public synchronized long getSamples()
+  {
+    return mSamples;
+  }
+
+
+
+  public synchronized long getFailures()
+  {
+    return mFailures;
+  }
+
+
+
+  public synchronized String toString()
+  {
+    return String.format("<%s:estimate=%.0fB/s:last=%.0fB/s:samples=%d:failures=%d:chunk=%d>",
+        LTAG, mEstimate, mLastSample, mSamples, mFailures, getChunkSize());
+  }
+}
@@ -35,8 +35,7 @@ public class Constants
   // Upload chunk size.
   public static final int MIN_UPLOAD_CHUNK_SIZE = 1024 * 50;
   public static final int MAX_UPLOAD_CHUNK_SIZE = 1024 * 1000;
-  public static final int MIN_UPLOAD_TIME       = 10000; // msec
-  public static final int MAX_UPLOAD_TIME       = 40000; // msec
+  public static final int TARGET_UPLOAD_TIME    = 15000; // msec
 
   // Notification IDs
   public static final int  NOTIFICATION_PLAYING_BACK  = 0;
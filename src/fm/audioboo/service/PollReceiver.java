@@ -83,7 +83,8 @@ public class PollReceiver extends BroadcastReceiver
     }
 
     mContext = context;
-    Globals.get().mAPI.fetchBoos(API.BOOS_INBOX, mHandler, 1, 20, new Date());
+    Globals.get().mAPI.fetchBoos(API.BOOS_INBOX, mHandler, 1, 20, new Date(),
+        API.LANE_BACKGROUND);
   }
 
 
@@ -18,15 +18,22 @@ import android.app.Notification;
 import android.app.NotificationManager;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 
-import java.util.List;
-import java.util.LinkedList;
-import java.util.Collections;
-
 import java.lang.ref.WeakReference;
 
+import java.io.File;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
 import fm.audioboo.application.Boo;
+import fm.audioboo.application.BooManager;
 import fm.audioboo.application.Globals;
 import fm.audioboo.application.API;
 import fm.audioboo.application.MyBoosActivity;
@@ -38,9 +45,9 @@ import fm.audioboo.data.UploadInfo;
 import android.util.Log;
 
 /**
- * Uploads Boos/Messages in the upload queue. It's not very clever that way, but
- * it does chunked uploading and can report which Boo/Message is uploaded and by
- * how much.
+ * Uploads Boos/Messages in the upload queue. Several are uploaded at the same
+ * time, Messages before Boos; uploads are chunked, and the manager can report
+ * which Boo/Message is uploaded and by how much.
  **/
 public class UploadManager
 {
@@ -56,6 +63,17 @@ public class UploadManager
   // Minimum delay for interrupting the queue again.
   private static final int MIN_QUEUE_DELAY      = 5 * 1000;
 
+  // Maximum number of chunks in flight per attachment.
+  private static final int UPLOAD_WINDOW        = 3;
+
+  // Default number of Boos/Messages uploaded at the same time.
+  private static final int DEFAULT_CONCURRENCY  = 2;
+
+  // Delay before retrying a failed upload; it doubles with each failure, up
+  // to SLEEP_TIME_LONG.
+  private static final int RETRY_DELAY          = 30 * 1000;
+  private static final int MAX_RETRY_SHIFT      = 4;
+
 
   /***************************************************************************
    * Upload result
@@ -79,6 +97,110 @@ public class UploadManager
 
 
 
+  /***************************************************************************
+   * Chunk in flight; the range of the file it covers, when it was sent, and
+   * the request sending it.
+   **/
+  private static class Chunk
+  {
+    public int          mStart;
+    public int          mEnd;
+    public long         mSent;
+    public API.Request  mRequest;
+
+    public Chunk(int start, int end, API.Request request)
+    {
+      mStart = start;
+      mEnd = end;
+      mSent = System.currentTimeMillis();
+      mRequest = request;
+    }
+  }
+
+
+
+  /***************************************************************************
+   * State of an attachment upload. Audio and image attachments are uploaded
+   * at the same time; each has its own chunks in flight, and receives its
+   * results via its own Handler.
+   *
+   * The window of chunks in flight shrinks to 1, i.e. serial uploads, when
+   * the server disagrees with us about what it received; it's restored once
+   * the attachment is complete.
+   **/
+  private class Transfer
+  {
+    public LinkedList<Chunk>  mInFlight = new LinkedList<Chunk>();
+    public int                mWindow;
+    public Handler            mHandler;
+
+
+    public Transfer(final Upload upload, int window)
+    {
+      mWindow = window;
+      mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+          public boolean handleMessage(Message msg)
+          {
+            UploadResult result = null;
+            if (API.ERR_SUCCESS == msg.what) {
+              result = (UploadResult) msg.obj;
+            }
+            process(upload, Transfer.this, msg.what, result);
+            return true;
+          }
+      });
+    }
+  }
+
+
+
+  /***************************************************************************
+   * State of a Boo or Message being uploaded. Each moves through the stages in
+   * UploadInfo on its own, so several can be uploaded at the same time, and
+   * one failing doesn't hold up the others.
+   **/
+  private class Upload
+  {
+    public Boo      mBoo;
+    public Transfer mAudio;
+    public Transfer mImage;
+    public boolean  mMetadataSent = false;
+    public boolean  mFinished = false;
+    public Handler  mHandler;
+
+
+    public Upload(Boo boo, int window)
+    {
+      mBoo = boo;
+      mAudio = new Transfer(this, window);
+      mImage = new Transfer(this, window);
+      mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+          public boolean handleMessage(Message msg)
+          {
+            UploadResult result = null;
+            if (API.ERR_SUCCESS == msg.what) {
+              result = (UploadResult) msg.obj;
+            }
+            process(Upload.this, null, msg.what, result);
+            return true;
+          }
+      });
+    }
+  }
+
+
+
+  /***************************************************************************
+   * Failed upload; it's retried after a delay that grows with each failure.
+   **/
+  private static class Failure
+  {
+    public int  mCount;
+    public long mRetryAt;
+  }
+
+
+
   /***************************************************************************
    * Queue thread
    **/
@@ -95,8 +217,9 @@ public class UploadManager
           process();
 
           // And when we're done, sleep. We'll get interrupted if the app
-          // thinks we need to do stuff.
-          sleep(SLEEP_TIME_LONG);
+          // thinks we need to do stuff, or wake up when a failed upload is
+          // due to be retried.
+          sleep(getSleepTime());
         } catch (InterruptedException ex) {
           // pass
         }
@@ -112,30 +235,26 @@ public class UploadManager
   // Context in which this object was created
   private WeakReference<Context>  mContext;
 
-  // Upload that's currently processed.
+  // Uploads that are currently processed, and the number of uploads to
+  // process at the same time.
   private Object                  mUploadLock = new Object();
-  private Boo                     mBooUpload;
+  private LinkedList<Upload>      mUploads    = new LinkedList<Upload>();
+  private int                     mConcurrency = DEFAULT_CONCURRENCY;
+
+  // Failed uploads, by Boo filename.
+  private HashMap<String, Failure> mFailures  = new HashMap<String, Failure>();
 
   // Throttles queue rescheduling.
   private long                    mQueueInterrupted = 0;
 
-  // Current chunk upload size, and timestamp for last upload request begin;
-  // the chunk size is going to be recalculated based on that timestamp.
+  // Chunk sizes are picked by the bandwidth estimator, which gets fed the
+  // time from the beginning of a chunk's transmission to its acknowledgement.
+  // The upload lane sends one request at a time, so a chunk starts being
+  // transmitted when it's sent or when the previous response came in,
+  // whichever is later.
   private QueueThread             mThread;
-  private int                     mChunkSize      = Constants.MIN_UPLOAD_CHUNK_SIZE;
-  private long                    mUploadStarted  = -1;
-
-  private Handler                 mHandler        = new Handler(new Handler.Callback() {
-      public boolean handleMessage(Message msg)
-      {
-        UploadResult result = null;
-        if (API.ERR_SUCCESS == msg.what) {
-          result = (UploadResult) msg.obj;
-        }
-        process(msg.what, result);
-        return true;
-      }
-  });
+  private BandwidthEstimator      mEstimator;
+  private long                    mLastResponse   = 0;
 
 
   /***************************************************************************
@@ -144,6 +263,7 @@ public class UploadManager
   public UploadManager(Context ctx)
   {
     mContext = new WeakReference<Context>(ctx);
+    mEstimator = new BandwidthEstimator();
     mThread = new QueueThread();
     mThread.start();
   }
@@ -152,12 +272,59 @@ public class UploadManager
 
   public void stop()
   {
+    // Don't lose progress that hasn't been written yet.
+    synchronized (mUploadLock)
+    {
+      for (Upload upload : mUploads) {
+        upload.mBoo.flush();
+      }
+    }
+    mEstimator.save();
+
     mThread.mShouldRun = false;
     mThread.interrupt();
   }
 
 
 
+  /**
+   * Returns the upload bandwidth estimator, for diagnostics.
+   **/
+  public BandwidthEstimator getBandwidthEstimator()
+  {
+    return mEstimator;
+  }
+
+
+
+  /**
+   * Sets the number of Boos/Messages to upload at the same time. Uploads in
+   * excess of a lowered number are allowed to finish.
+   **/
+  public void setConcurrency(int concurrency)
+  {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Need to upload at least one Boo at a time.");
+    }
+    synchronized (mUploadLock)
+    {
+      mConcurrency = concurrency;
+    }
+    processQueue();
+  }
+
+
+
+  public int getConcurrency()
+  {
+    synchronized (mUploadLock)
+    {
+      return mConcurrency;
+    }
+  }
+
+
+
   public void processQueue()
   {
     // Really just need to interrupt the main run loop, that's all.
@@ -172,60 +339,213 @@ public class UploadManager
 
   /**
    * Run the upload processing loop until we're out of work for the moment.
-   * XXX Must be called when the upload lock is held.
    **/
   private void process()
   {
-    process(API.ERR_SUCCESS, null);
+    process(null, null, API.ERR_SUCCESS, null);
   }
 
 
-  private void process(int result, UploadResult res)
+  /**
+   * Processes a result for the given upload; for one of its attachments if
+   * transfer is non-null, for the metadata otherwise. If that made room, the
+   * queue thread is woken up to start new uploads. Without an upload, new
+   * uploads are started right away; only the queue thread does that.
+   **/
+  private void process(Upload upload, Transfer transfer, int result, UploadResult res)
   {
     synchronized (mUploadLock)
     {
-      // Check for errors.
-      if (API.ERR_SUCCESS != result) {
-        Log.e(LTAG, "Response code: " + result);
-        setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
-        mBooUpload = null;
+      if (null != upload) {
+        // Avoid that the result is matched with an upload that was finished
+        // or failed in the meantime.
+        if (upload.mFinished) {
+          Log.w(LTAG, "Result for finished upload: " + result + " - " + res);
+          return;
+        }
+
+        int active = mUploads.size();
+        if (API.ERR_SUCCESS != result) {
+          Log.e(LTAG, "Response code: " + result);
+          mLastResponse = System.currentTimeMillis();
+          fail(upload);
+        }
+        else {
+          if (null == transfer) {
+            mLastResponse = System.currentTimeMillis();
+          }
+
+          // Now process stages until we're supposed to stop.
+          while (processNextStage(upload, transfer, result, res)) {
+            // After the first iteration, any result that might've come in needs
+            // to be discarded.
+            res = null;
+          }
+        }
+
+        // Only look for new uploads if this one made room. Results arrive on
+        // the main thread, so leave that to the queue thread; it must not be
+        // throttled, or the free slot would go unused until the next wakeup.
+        if (mUploads.size() < active) {
+          mThread.interrupt();
+        }
         return;
       }
 
-      // Preprocess; avoid that the result is matched with the wrong Boo.
-      if (null == mBooUpload && null != res) {
-        Log.e(LTAG, "Result for unknown upload: " + res);
-        return;
+      schedule();
+    }
+  }
+
+
+
+  /**
+   * Starts new uploads until mConcurrency are being processed, or there are
+   * no more uploads. Failed uploads are skipped until they're due for a retry.
+   * XXX Must be called when the upload lock is held.
+   **/
+  private void schedule()
+  {
+    if (mUploads.size() >= mConcurrency) {
+      return;
+    }
+
+    // Skip uploads in progress, and failed ones that aren't due yet.
+    HashSet<String> skip = new HashSet<String>();
+    for (Upload upload : mUploads) {
+      skip.add(upload.mBoo.mData.mFilename);
+    }
+
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, Failure>> iter = mFailures.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<String, Failure> entry = iter.next();
+      if (!new File(entry.getKey()).exists()) {
+        iter.remove();
       }
+      else if (entry.getValue().mRetryAt > now) {
+        skip.add(entry.getKey());
+      }
+    }
+
+    // Log.d(LTAG, "Finding uploads...");
+    BooManager manager = Globals.get().getBooManager();
+    manager.rebuildIndex();
+
+    while (mUploads.size() < mConcurrency) {
+      List<Boo> boos = manager.getNextUploads(mConcurrency - mUploads.size(), skip);
+      if (boos.isEmpty()) {
+        break;
+      }
+
+      for (Boo boo : boos) {
+        // Don't pick the same upload twice, even if it failed right away.
+        skip.add(boo.mData.mFilename);
+
+        // Uploads that failed before start out serially.
+        int window = mFailures.containsKey(boo.mData.mFilename) ? 1 : UPLOAD_WINDOW;
+        Upload upload = new Upload(boo, window);
+        mUploads.add(upload);
 
-      // Ensure that there is a current boo, if possible. If the queue is
-      // empty, of course, that won't be the case.
-      if (null == mBooUpload) {
-        // Log.d(LTAG, "Finding uploads...");
-        Globals.get().getBooManager().rebuildIndex();
-        List<Boo> uploads = new LinkedList<Boo>();
-        uploads.addAll(Globals.get().getBooManager().getBooUploads());
-        uploads.addAll(Globals.get().getBooManager().getMessageUploads());
-        Collections.sort(uploads, Boo.RECORDING_DATE_COMPARATOR);
-
-        if (!uploads.isEmpty()) {
-          mBooUpload = uploads.get(0);
+        while (processNextStage(upload, null, API.ERR_SUCCESS, null)) {
+          // Keep going
         }
       }
+    }
 
-      // Empty queue, we're done.
-      if (null == mBooUpload) {
-        clearUploadingNotification();
-        return;
+    // Empty queue, we're done.
+    if (mUploads.isEmpty()) {
+      clearUploadingNotification();
+    }
+  }
+
+
+
+  /**
+   * Returns the time the queue thread should sleep for; until the next failed
+   * upload is due for a retry, but no longer than SLEEP_TIME_LONG.
+   **/
+  private long getSleepTime()
+  {
+    long sleep = SLEEP_TIME_LONG;
+    synchronized (mUploadLock)
+    {
+      long now = System.currentTimeMillis();
+      for (Failure failure : mFailures.values()) {
+        if (failure.mRetryAt > now) {
+          sleep = Math.min(sleep, Math.max(failure.mRetryAt - now, MIN_QUEUE_DELAY));
+        }
       }
+    }
+    return sleep;
+  }
+
 
-      // Now process stages until we're supposed to stop.
-      while (processNextStage(result, res)) {
-        // After the first iteration, any result that might've come in needs to
-        // be discarded.
-        res = null;
+
+  /**
+   * Stops processing the upload after an error. Whatever else is in flight
+   * for it is ignored. It's retried after a delay; further failures increase
+   * that delay.
+   * XXX Must be called when the upload lock is held.
+   **/
+  private void fail(Upload upload)
+  {
+    upload.mFinished = true;
+    mUploads.remove(upload);
+
+    // Chunks still queued would reach the server after the failure, possibly
+    // while the retry sends chunks from a different offset.
+    cancelChunks(upload.mAudio);
+    cancelChunks(upload.mImage);
+    setNotification(upload.mBoo, Constants.NOTIFICATION_UPLOAD_ERROR);
+
+    String filename = upload.mBoo.mData.mFilename;
+    if (null != filename) {
+      Failure failure = mFailures.get(filename);
+      if (null == failure) {
+        failure = new Failure();
+        mFailures.put(filename, failure);
       }
+      ++failure.mCount;
+      long delay = Math.min(SLEEP_TIME_LONG,
+          RETRY_DELAY << Math.min(failure.mCount - 1, MAX_RETRY_SHIFT));
+      failure.mRetryAt = System.currentTimeMillis() + delay;
+      Log.w(LTAG, "Upload of '" + filename + "' failed " + failure.mCount
+          + " time(s), retrying in " + delay + " msec.");
     }
+
+    mEstimator.addFailure();
+    mEstimator.save();
+  }
+
+
+
+  /**
+   * Cancels the transfer's chunks that haven't been sent yet. The one being
+   * sent can't be cancelled, but the upload lane sends one request at a time,
+   * so it's done before any chunk of a retry goes out.
+   **/
+  private void cancelChunks(Transfer transfer)
+  {
+    API api = Globals.get().mAPI;
+    if (null != api) {
+      for (Chunk chunk : transfer.mInFlight) {
+        api.cancelRequest(chunk.mRequest);
+      }
+    }
+    transfer.mInFlight.clear();
+  }
+
+
+
+  /**
+   * Stops processing the upload after it completed.
+   * XXX Must be called when the upload lock is held.
+   **/
+  private void finish(Upload upload)
+  {
+    upload.mFinished = true;
+    mUploads.remove(upload);
+    mFailures.remove(upload.mBoo.mData.mFilename);
   }
 
 
@@ -235,43 +555,32 @@ public class UploadManager
    * immediately, false otherwise.
    * XXX Must be called when the upload lock is held.
    **/
-  private boolean processNextStage(int result, UploadResult res)
+  private boolean processNextStage(Upload upload, Transfer transfer, int result, UploadResult res)
   {
-    if (null == mBooUpload.mData || null == mBooUpload.mData.mUploadInfo) {
-      Log.e(LTAG, "Can't process null upload: " + mBooUpload);
-
-      setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
-      mBooUpload = null;
+    Boo boo = upload.mBoo;
+    if (null == boo.mData || null == boo.mData.mUploadInfo) {
+      Log.e(LTAG, "Can't process null upload: " + boo);
+      fail(upload);
       return false;
     }
-    setNotification(mBooUpload, Constants.NOTIFICATION_UPLOADING);
-
-    // Calculate how long the last upload request took.
-    long diff = -1;
-    if (-1 != mUploadStarted) {
-      diff = System.currentTimeMillis() - mUploadStarted;
-      mUploadStarted = -1;
-    }
+    setNotification(boo, Constants.NOTIFICATION_UPLOADING);
 
     // Delegate to chunk-specific function
     boolean ret = false;
-    switch (mBooUpload.mData.mUploadInfo.mUploadStage) {
+    switch (boo.mData.mUploadInfo.mUploadStage) {
       case UploadInfo.UPLOAD_STAGE_AUDIO:
-        ret = processAudioStage(result, diff, res);
-        break;
-
       case UploadInfo.UPLOAD_STAGE_IMAGE:
-        ret = processImageStage(result, diff, res);
+        ret = processAttachmentStage(upload, transfer, res);
         break;
 
       case UploadInfo.UPLOAD_STAGE_METADATA:
-        ret = processMetadataStage(result, res);
+        // Late results for attachments are of no interest any longer.
+        ret = processMetadataStage(upload, null == transfer ? res : null);
         break;
 
       default:
-        Log.e(LTAG, "Invalid processing stage: " + mBooUpload.mData.mUploadInfo.mUploadStage);
-        setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
-        mBooUpload = null;
+        Log.e(LTAG, "Invalid processing stage: " + boo.mData.mUploadInfo.mUploadStage);
+        fail(upload);
         break;
     }
 
@@ -281,139 +590,167 @@ public class UploadManager
 
 
   /**
-   * Part of processNextStage()
+   * Part of processNextStage(); uploads the audio and image attachments side
+   * by side. Both need to be complete before the metadata can be uploaded.
+   * XXX Must be called when the upload lock is held.
+   **/
+  private boolean processAttachmentStage(Upload upload, Transfer transfer, UploadResult res)
+  {
+    // A result for one attachment also gives the other one a chance to fill
+    // its window, unless that one is still waiting for its create request to
+    // come back; it can't be complete then, and has nothing to send.
+    UploadInfo info = upload.mBoo.mData.mUploadInfo;
+
+    boolean audio = false;
+    if (upload.mAudio == transfer || !isCreating(upload.mAudio, info.mAudioChunkId)) {
+      audio = processAudioAttachment(upload, upload.mAudio == transfer ? res : null);
+      if (upload.mFinished) {
+        return false;
+      }
+    }
+
+    boolean image = false;
+    if (upload.mImage == transfer || !isCreating(upload.mImage, info.mImageChunkId)) {
+      image = processImageAttachment(upload, upload.mImage == transfer ? res : null);
+      if (upload.mFinished) {
+        return false;
+      }
+    }
+
+    if (!audio || !image) {
+      return false;
+    }
+
+    upload.mBoo.mData.mUploadInfo.mUploadStage = UploadInfo.UPLOAD_STAGE_METADATA;
+    upload.mBoo.writeToFile();
+    return true;
+  }
+
+
+
+  /**
+   * Part of processAttachmentStage(); returns true if the audio attachment is
+   * complete.
    * XXX Must be called when the upload lock is held.
    **/
-  private boolean processAudioStage(int result, long diff, UploadResult res)
+  private boolean processAudioAttachment(Upload upload, UploadResult res)
   {
-    // Log.d(LTAG, "Audio stage: " + mBooUpload);
+    Boo boo = upload.mBoo;
+    // Log.d(LTAG, "Audio attachment: " + boo);
 
-    int oldOffset = mBooUpload.mData.mUploadInfo.mAudioUploaded;
+    // Uploads used to be processed one attachment after the other; in the
+    // image stage, the audio is complete.
+    if (UploadInfo.UPLOAD_STAGE_IMAGE == boo.mData.mUploadInfo.mUploadStage) {
+      return true;
+    }
 
     if (null != res) {
-      if (-1 != mBooUpload.mData.mUploadInfo.mAudioChunkId
-          && mBooUpload.mData.mUploadInfo.mAudioChunkId != res.id)
+      if (-1 != boo.mData.mUploadInfo.mAudioChunkId
+          && boo.mData.mUploadInfo.mAudioChunkId != res.id)
       {
         Log.e(LTAG, "Got response, but the chunk IDs don't match. Ugh.");
-        setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
-        mBooUpload = null;
-        return false;
-      }
-
-      // We might have multiple results. In order to avoid sending more
-      // duplicate requests, check that the result actually matters.
-      if (res.received <= mBooUpload.mData.mUploadInfo.mAudioUploaded) {
-        Log.w(LTAG, "Multiple requests detected, cancelling this loop.");
-        // We don't want to null mBooUpload here or send an error - just
-        // silently carry on.
+        fail(upload);
         return false;
       }
 
-      // Update metadata
-      mBooUpload.mData.mUploadInfo.mAudioChunkId = res.id;
-      mBooUpload.mData.mUploadInfo.mAudioUploaded = res.received;
-      mBooUpload.mData.mUploadInfo.mUploadError = false;
+      acknowledgeChunk(upload.mAudio, res);
 
-      if (res.complete || res.outstanding <= 0) {
-        mBooUpload.mData.mUploadInfo.mUploadStage = UploadInfo.UPLOAD_STAGE_IMAGE;
-        mBooUpload.writeToFile();
-        return true;
+      // We might have multiple results. Only those that report progress
+      // matter; the rest we silently skip.
+      if (res.received <= boo.mData.mUploadInfo.mAudioUploaded) {
+        Log.w(LTAG, "Duplicate or stale result, ignoring: " + res);
       }
-      mBooUpload.writeToFile();
-    }
+      else {
+        // Update metadata
+        boo.mData.mUploadInfo.mAudioChunkId = res.id;
+        boo.mData.mUploadInfo.mAudioUploaded = res.received;
+        boo.mData.mUploadInfo.mUploadError = false;
 
-    // Adjust chunk size, unless this is a retry.
-    if (oldOffset != mBooUpload.mData.mUploadInfo.mAudioUploaded) {
-      // It is a retry.
-      adjustChunkSize(diff, result);
+        if (res.complete || res.outstanding <= 0) {
+          boo.writeToFile();
+          upload.mAudio.mInFlight.clear();
+          upload.mAudio.mWindow = UPLOAD_WINDOW;
+          mEstimator.save();
+          return true;
+        }
+        boo.writeToFileCoalesced();
+      }
     }
 
     // Create a new attachment if we don't have an ID yet. Otherwise add to the
     // pre-existing attachment.
-    mUploadStarted = System.currentTimeMillis();
-    if (-1 == mBooUpload.mData.mUploadInfo.mAudioChunkId) {
-      mBooUpload.flattenAudio();
-      Globals.get().mAPI.createAttachment(mBooUpload.mData.mHighMP3Url.getPath(), 0,
-          mChunkSize, mHandler);
+    if (-1 == boo.mData.mUploadInfo.mAudioChunkId && upload.mAudio.mInFlight.isEmpty()) {
+      boo.flattenAudio();
     }
-    else {
-      Globals.get().mAPI.appendToAttachment(mBooUpload.mData.mUploadInfo.mAudioChunkId,
-          mBooUpload.mData.mHighMP3Url.getPath(), mBooUpload.mData.mUploadInfo.mAudioUploaded,
-          mChunkSize, mHandler);
+    String path = boo.mData.mHighMP3Url.getPath();
+    if (isComplete(boo.mData.mUploadInfo.mAudioChunkId,
+          boo.mData.mUploadInfo.mAudioUploaded, path))
+    {
+      return true;
     }
+    sendChunks(upload.mAudio, boo.mData.mUploadInfo.mAudioChunkId, path,
+        boo.mData.mUploadInfo.mAudioUploaded);
     return false;
   }
 
 
 
   /**
-   * Part of processNextStage()
+   * Part of processAttachmentStage(); returns true if the image attachment is
+   * complete, or there is none.
    * XXX Must be called when the upload lock is held.
    **/
-  private boolean processImageStage(int result, long diff, UploadResult res)
+  private boolean processImageAttachment(Upload upload, UploadResult res)
   {
-    // Log.d(LTAG, "Image stage: " + mBooUpload);
+    Boo boo = upload.mBoo;
+    // Log.d(LTAG, "Image attachment: " + boo);
 
-    int oldOffset = mBooUpload.mData.mUploadInfo.mImageUploaded;
+    // We might not have an image attachment.
+    if (null == boo.mData.mImageUrl) {
+      return true;
+    }
 
     if (null != res) {
-      if (-1 != mBooUpload.mData.mUploadInfo.mImageChunkId
-          && mBooUpload.mData.mUploadInfo.mImageChunkId != res.id)
+      if (-1 != boo.mData.mUploadInfo.mImageChunkId
+          && boo.mData.mUploadInfo.mImageChunkId != res.id)
       {
         Log.e(LTAG, "Got response, but the chunk IDs don't match. Ugh.");
-        setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
-        mBooUpload = null;
+        fail(upload);
         return false;
       }
 
-      // We might have multiple results. In order to avoid sending more
-      // duplicate requests, check that the result actually matters.
-      if (res.received <= mBooUpload.mData.mUploadInfo.mImageUploaded) {
-        Log.w(LTAG, "Multiple requests detected, cancelling this loop.");
-        // We don't want to null mBooUpload here or send an error - just
-        // silently carry on.
-        return false;
-      }
+      acknowledgeChunk(upload.mImage, res);
 
-      // Update metadata
-      mBooUpload.mData.mUploadInfo.mImageChunkId = res.id;
-      mBooUpload.mData.mUploadInfo.mImageUploaded = res.received;
-      mBooUpload.mData.mUploadInfo.mUploadError = false;
+      // We might have multiple results. Only those that report progress
+      // matter; the rest we silently skip.
+      if (res.received <= boo.mData.mUploadInfo.mImageUploaded) {
+        Log.w(LTAG, "Duplicate or stale result, ignoring: " + res);
+      }
+      else {
+        // Update metadata
+        boo.mData.mUploadInfo.mImageChunkId = res.id;
+        boo.mData.mUploadInfo.mImageUploaded = res.received;
+        boo.mData.mUploadInfo.mUploadError = false;
 
-      if (res.complete || res.outstanding <= 0) {
-        mBooUpload.mData.mUploadInfo.mUploadStage = UploadInfo.UPLOAD_STAGE_METADATA;
-        mBooUpload.writeToFile();
-        return true;
+        if (res.complete || res.outstanding <= 0) {
+          boo.writeToFile();
+          upload.mImage.mInFlight.clear();
+          upload.mImage.mWindow = UPLOAD_WINDOW;
+          mEstimator.save();
+          return true;
+        }
+        boo.writeToFileCoalesced();
       }
-      mBooUpload.writeToFile();
     }
 
-    // We might not have an image attachment.
-    if (null == mBooUpload.mData.mImageUrl) {
-      mBooUpload.mData.mUploadInfo.mUploadStage = UploadInfo.UPLOAD_STAGE_METADATA;
-      mBooUpload.writeToFile();
+    String path = boo.mData.mImageUrl.getPath();
+    if (isComplete(boo.mData.mUploadInfo.mImageChunkId,
+          boo.mData.mUploadInfo.mImageUploaded, path))
+    {
       return true;
     }
-
-    // Adjust chunk size, unless this is a retry.
-    if (oldOffset != mBooUpload.mData.mUploadInfo.mImageUploaded) {
-      // It is a retry.
-      adjustChunkSize(diff, result);
-    }
-
-    // Create a new attachment if we don't have an ID yet. Otherwise add to the
-    // pre-existing attachment.
-    mUploadStarted = System.currentTimeMillis();
-    if (-1 == mBooUpload.mData.mUploadInfo.mImageChunkId) {
-      mBooUpload.flattenAudio();
-      Globals.get().mAPI.createAttachment(mBooUpload.mData.mImageUrl.getPath(), 0,
-          mChunkSize, mHandler);
-    }
-    else {
-      Globals.get().mAPI.appendToAttachment(mBooUpload.mData.mUploadInfo.mImageChunkId,
-          mBooUpload.mData.mImageUrl.getPath(), mBooUpload.mData.mUploadInfo.mImageUploaded,
-          mChunkSize, mHandler);
-    }
+    sendChunks(upload.mImage, boo.mData.mUploadInfo.mImageChunkId, path,
+        boo.mData.mUploadInfo.mImageUploaded);
     return false;
   }
 
@@ -423,19 +760,25 @@ public class UploadManager
    * Part of processNextStage()
    * XXX Must be called when the upload lock is held.
    **/
-  private boolean processMetadataStage(int result, UploadResult res)
+  private boolean processMetadataStage(Upload upload, UploadResult res)
   {
     // Log.d(LTAG, "metadata stage: " + res);
     if (null != res && res.id > 0) {
-      setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_DONE);
+      setNotification(upload.mBoo, Constants.NOTIFICATION_UPLOAD_DONE);
 
-      mBooUpload.delete();
-      mBooUpload = null;
+      upload.mBoo.delete();
+      finish(upload);
       return false;
     }
 
-    // Try the last phase.
-    Globals.get().mAPI.uploadBoo(mBooUpload, mHandler);
+    // Try the last phase, unless we're already waiting for it.
+    if (null != res) {
+      upload.mMetadataSent = false;
+    }
+    if (!upload.mMetadataSent) {
+      upload.mMetadataSent = true;
+      Globals.get().mAPI.uploadBoo(upload.mBoo, upload.mHandler);
+    }
     return false;
   }
 
@@ -552,22 +895,95 @@ public class UploadManager
 
 
 
-  private void adjustChunkSize(long diff, int result)
+  /**
+   * Returns true if the server has received all of the file at path for the
+   * given attachment.
+   **/
+  private static boolean isComplete(int chunkId, int uploaded, String path)
   {
-    if (diff > Constants.MAX_UPLOAD_TIME || API.ERR_SUCCESS != result) {
-      mChunkSize /= 1.5;
-    }
-    else if (diff < Constants.MIN_UPLOAD_TIME) {
-      mChunkSize *= 1.5;
-    }
+    return -1 != chunkId && uploaded >= new File(path).length();
+  }
+
+
 
-    if (mChunkSize < Constants.MIN_UPLOAD_CHUNK_SIZE) {
-      mChunkSize = Constants.MIN_UPLOAD_CHUNK_SIZE;
+  /**
+   * Matches an acknowledgement with the oldest chunk in flight for the
+   * transfer. If the server received less or more than that chunk's end
+   * offset, we're out of step with it; no further chunks are sent until those
+   * in flight have drained, and uploads continue serially from what the
+   * server last reported.
+   * XXX Must be called when the upload lock is held.
+   **/
+  private void acknowledgeChunk(Transfer transfer, UploadResult res)
+  {
+    long now = System.currentTimeMillis();
+    long started = mLastResponse;
+    mLastResponse = now;
+
+    Chunk expected = transfer.mInFlight.poll();
+    if (null == expected || expected.mEnd != res.received) {
+      Log.w(LTAG, "Expected " + (null == expected ? null : expected.mEnd)
+          + " bytes received, got " + res + "; falling back to serial uploads.");
+      transfer.mWindow = 1;
+      return;
     }
-    else if (mChunkSize > Constants.MAX_UPLOAD_CHUNK_SIZE) {
-      mChunkSize = Constants.MAX_UPLOAD_CHUNK_SIZE;
+
+    mEstimator.addSample(expected.mEnd - expected.mStart,
+        now - Math.max(started, expected.mSent));
+  }
+
+
+
+  /**
+   * Returns true if the transfer's create request is still outstanding, i.e.
+   * there is no attachment ID yet, but a chunk is in flight.
+   **/
+  private boolean isCreating(Transfer transfer, int chunkId)
+  {
+    return -1 == chunkId && !transfer.mInFlight.isEmpty();
+  }
+
+
+
+  /**
+   * Sends chunks of the given file until the transfer's window is full or the
+   * file is exhausted. Chunks are sent in order of their offsets on the
+   * upload lane, which serves them in that order. Without an attachment ID,
+   * only the chunk creating the attachment can be sent.
+   * XXX Must be called when the upload lock is held.
+   **/
+  private void sendChunks(Transfer transfer, int chunkId, String path, int uploaded)
+  {
+    LinkedList<Chunk> inFlight = transfer.mInFlight;
+
+    // The attachment is still being created; more chunks have to wait for its
+    // ID, and another create would leave an orphaned attachment behind.
+    if (isCreating(transfer, chunkId)) {
+      return;
     }
 
-    // Log.d(LTAG, "Chunk size is: " + mChunkSize);
+    int length = (int) new File(path).length();
+    int offset = inFlight.isEmpty() ? uploaded : inFlight.getLast().mEnd;
+
+    while (inFlight.size() < transfer.mWindow && (offset < length || 0 == length)) {
+      int size = mEstimator.getChunkSize();
+      if (-1 == chunkId) {
+        API.Request req = Globals.get().mAPI.createAttachment(path, 0, size,
+            transfer.mHandler);
+        inFlight.add(new Chunk(0, Math.min(length, size), req));
+        return;
+      }
+
+      // Log.d(LTAG, "Sending chunk at " + offset + " of " + path);
+      API.Request req = Globals.get().mAPI.appendToAttachment(chunkId, path,
+          offset, size, transfer.mHandler);
+      int end = Math.min(length, offset + size);
+      inFlight.add(new Chunk(offset, end, req));
+      offset = end;
+
+      if (0 == length) {
+        return;
+      }
+    }
   }
 }
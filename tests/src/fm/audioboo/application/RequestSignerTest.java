@@ -0,0 +1,174 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.math.BigInteger;
+
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that RequestSigner produces the same signatures as the code in
+ * API.createSignature() it replaced, which encoded strings via getBytes() and
+ * hex-encoded the digest via BigInteger.
+ **/
+public class RequestSignerTest extends TestCase
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Longer than the signer's encoding buffer, with multi-byte sequences at
+  // both ends.
+  private static final String LONG_INPUT;
+  static {
+    StringBuilder builder = new StringBuilder("\u00e9");
+    for (int i = 0 ; i < 205 ; ++i) {
+      builder.append("0123456789");
+    }
+    builder.append("\ud83c\udfa4");
+    LONG_INPUT = builder.toString();
+  }
+
+
+  /***************************************************************************
+   * Golden signatures
+   **/
+  public void testEmpty() throws Exception
+  {
+    assertSignature("da39a3ee5e6b4b0d3255bfef95601890afd80709", "");
+  }
+
+
+
+  public void testAscii() throws Exception
+  {
+    assertSignature("98fa38edbeaa835404a6149d2fb861681613f988",
+        "https://api.audioboo.fm/audio_clips:audio_clip[title]=Hello World"
+        + "&timestamp=1300000000:s3cr3t");
+  }
+
+
+
+  public void testLeadingZero() throws Exception
+  {
+    assertSignature("00d5b333110120d5a148fb3b169b80ac31959578", "boo187");
+  }
+
+
+
+  public void testTwoByteSequences() throws Exception
+  {
+    assertSignature("2d30479fe410fbb7788504a243524b2e9e5dd321",
+        "caf\u00e9 \u00fcber na\u00efve");
+  }
+
+
+
+  public void testThreeByteSequences() throws Exception
+  {
+    assertSignature("d0d74a329b5c53cda1df5d44d77d64219fff8bd6",
+        "\u65e5\u672c\u8a9e \u20ac \u0416");
+  }
+
+
+
+  public void testSurrogatePairs() throws Exception
+  {
+    assertSignature("9a4cdf9139cb906a1550baa52481b9b3389a4697",
+        "\ud83c\udfa4 mic \ud834\udd1e");
+  }
+
+
+
+  public void testLongInput() throws Exception
+  {
+    assertSignature("fa6f95910ffacf2c09cd5eab5c128047223590bc", LONG_INPUT);
+  }
+
+
+
+  /***************************************************************************
+   * Comparisons with the old implementation
+   **/
+  public void testUnpairedSurrogates() throws Exception
+  {
+    String[] inputs = new String[] {
+      "\ud83c",
+      "\udfa4",
+      "a\ud83cb",
+      "a\udfa4\ud83c",
+      "\ud83c\ud83c\udfa4",
+    };
+    for (String input : inputs) {
+      assertEquals(oldSignature(input), sign(input));
+    }
+  }
+
+
+
+  public void testPieces() throws Exception
+  {
+    RequestSigner signer = RequestSigner.get().reset();
+    signer.append("http://example.com/boos").append(':');
+    signer.append("tags[]=").append("caf\u00e9").append('&');
+    signer.append("title=").append(LONG_INPUT);
+    signer.append(':').append("\ud83c\udfa4");
+
+    assertEquals(oldSignature("http://example.com/boos:tags[]=caf\u00e9&title="
+          + LONG_INPUT + ":\ud83c\udfa4"),
+        signer.finish());
+  }
+
+
+
+  public void testReuse() throws Exception
+  {
+    sign(LONG_INPUT);
+    assertEquals(oldSignature("caf\u00e9"), sign("caf\u00e9"));
+  }
+
+
+
+  /***************************************************************************
+   * Helpers
+   **/
+  private static void assertSignature(String expected, String input)
+    throws Exception
+  {
+    assertEquals(expected, oldSignature(input));
+    assertEquals(expected, sign(input));
+  }
+
+
+
+  private static String sign(String input)
+  {
+    return RequestSigner.get().reset().append(input).finish();
+  }
+
+
+
+  /**
+   * Signature as computed before RequestSigner; getBytes() used the platform
+   * charset, which is UTF-8 on Android.
+   **/
+  private static String oldSignature(String input) throws Exception
+  {
+    MessageDigest m = MessageDigest.getInstance("SHA-1");
+    m.update(input.getBytes("UTF-8"));
+    String signature = new BigInteger(1, m.digest()).toString(16);
+    while (signature.length() < 40) {
+      signature = "0" + signature;
+    }
+    return signature;
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Golden tests for API request signatures. The expected signatures were
+ * computed by API.createSignature() as it was before RequestSigner, i.e.
+ * from String.format()ed pieces encoded with getBytes(), and FilePartBody
+ * read through a FileInputStream.
+ **/
+public class SignatureTest extends AndroidTestCase
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  private static final String URI           = "http://api.audioboo.fm/audio_clips";
+  private static final String SECRET        = "75056ca984faa8e23ea97e1537796ab1";
+
+  // Size of the attachment file.
+  private static final int    FILE_SIZE     = 20000;
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private File  mFile;
+
+
+  /***************************************************************************
+   * Setup
+   **/
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+
+    byte[] data = new byte[FILE_SIZE];
+    for (int i = 0 ; i < data.length ; ++i) {
+      data[i] = (byte) (i * 31 + 7);
+    }
+
+    mFile = new File(getContext().getCacheDir(), "signature-test.bin");
+    FileOutputStream out = new FileOutputStream(mFile);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mFile.delete();
+    super.tearDown();
+  }
+
+
+
+  /***************************************************************************
+   * Tests
+   **/
+  public void testNoParams()
+  {
+    assertEquals("a95490f82c509265a844aac7bb19e02417d4bc61",
+        API.computeSignature(URI, new HashMap<String, Object>(), SECRET));
+  }
+
+
+
+  /**
+   * Keys are sorted case-insensitively; lists are signed as key[]=value for
+   * each element, and an empty list leaves just a separator.
+   **/
+  public void testParams()
+  {
+    HashMap<String, Object> params = new HashMap<String, Object>();
+    params.put("page[items]", "15");
+    params.put("page[number]", "2");
+    params.put("max_time", "1300000000");
+    params.put("service[timestamp]", "1300000001");
+
+    ArrayList<String> tags = new ArrayList<String>();
+    tags.add("one");
+    tags.add("zwei");
+    tags.add("drei \u00fc");
+    params.put("find[tags]", tags);
+
+    ArrayList<String> single = new ArrayList<String>();
+    single.add("x");
+    params.put("find[single]", single);
+    params.put("find[empty]", new ArrayList<String>());
+
+    params.put("Zeta", "z");
+    params.put("alpha", "a");
+    params.put("Beta", "b");
+    params.put("message[played]", Integer.valueOf(1));
+
+    assertEquals("4518d636f29702a2649c93472901e0965444a049",
+        API.computeSignature(URI, params, SECRET));
+  }
+
+
+
+  /**
+   * File parts are signed by their contents.
+   **/
+  public void testFilePart()
+  {
+    HashMap<String, Object> params = new HashMap<String, Object>();
+    params.put("attachment[chunk_offset]", "1000");
+    params.put("attachment[size]", String.valueOf(FILE_SIZE));
+    params.put("attachment[chunk]", new FilePartBody(mFile, 1000, 12000));
+    params.put("service[timestamp]", "1300000001");
+
+    assertEquals("d59e3f39e65425241667af9bbf9a85b6298d014e",
+        API.computeSignature("http://api.audioboo.fm/attachments/42", params,
+          SECRET));
+  }
+
+
+
+  public void testWholeFileAndNonAscii()
+  {
+    HashMap<String, Object> params = new HashMap<String, Object>();
+    params.put("audio_clip[title]", "Caf\u00e9 \ud83c\udfa4 \u65e5\u672c");
+    params.put("attachment[chunk]", new FilePartBody(mFile));
+
+    ArrayList<String> tags = new ArrayList<String>();
+    tags.add("\u00fcber");
+    tags.add("\ud834\udd1e");
+    params.put("audio_clip[tag_list]", tags);
+
+    assertEquals("d1604b42360d86d903387cad71cacb0c2c4a6f94",
+        API.computeSignature("http://api.audioboo.fm/attachments", params,
+          SECRET));
+  }
+
+
+
+  /**
+   * Null values are skipped, but the separator before them is not.
+   **/
+  public void testNullValues()
+  {
+    HashMap<String, Object> params = new HashMap<String, Object>();
+    params.put("a", "1");
+    params.put("b", null);
+    params.put("c", "3");
+    params.put("z", null);
+
+    assertEquals("eb3a9f55427047170191d7d749dc7f30dc4f9189",
+        API.computeSignature(URI, params, SECRET));
+  }
+}